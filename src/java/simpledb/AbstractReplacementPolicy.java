@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helper for implementing ReplacementPolicies. Keeps the hit/miss/eviction
+ * counters and forwards the events to the subclass. The counters are
+ * striped, so that counting hits does not serialize concurrent lookups.
+ */
+public abstract class AbstractReplacementPolicy implements ReplacementPolicy {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public void recordHit(PageId pid) {
+        hits.increment();
+        accessed(pid);
+    }
+
+    public void recordMiss(PageId pid) {
+        misses.increment();
+        admitted(pid);
+    }
+
+    public void recordEviction(PageId pid) {
+        evictions.increment();
+        evicted(pid);
+    }
+
+    public void remove(PageId pid) {
+        discarded(pid);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + "(hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", evictions=" + getEvictionCount() + ")";
+    }
+
+    /** Called when a resident page is referenced again. */
+    protected abstract void accessed(PageId pid);
+
+    /** Called when a page becomes resident. */
+    protected abstract void admitted(PageId pid);
+
+    /** Called when a page is evicted. Must ignore unknown pages. */
+    protected abstract void evicted(PageId pid);
+
+    /**
+     * Called when a page stops being resident without being evicted. Must
+     * ignore unknown pages. The default treats it as an eviction; policies
+     * that remember evicted pages override it to forget the page instead.
+     */
+    protected void discarded(PageId pid) {
+        evicted(pid);
+    }
+}
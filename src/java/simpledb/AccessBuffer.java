@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hits that a ReplacementPolicy has recorded but not applied yet. Recording
+ * a hit only appends it to a lock-free queue, so hits on resident pages do
+ * not serialize on the policy's lock; the policy applies the queued hits, in
+ * order, whenever it next holds the lock. If the queue fills up before then,
+ * the hitting thread applies them itself if the lock is free, and otherwise
+ * drops its own hit, which only makes the replacement order less exact.
+ *
+ * @Threadsafe
+ */
+abstract class AccessBuffer {
+
+    /** Default number of hits queued before a hitting thread drains them. */
+    static final int DEFAULT_CAPACITY = 256;
+
+    private final ConcurrentLinkedQueue<PageId> queue = new ConcurrentLinkedQueue<PageId>();
+    // the queue's own size() is linear, so count separately
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock lock;
+    private final int capacity;
+
+    /**
+     * @param lock the lock of the policy that the hits are applied to
+     * @param capacity the number of hits queued before a hitting thread
+     *   applies them itself
+     */
+    AccessBuffer(ReentrantLock lock, int capacity) {
+        this.lock = lock;
+        this.capacity = capacity;
+    }
+
+    /** Applies one hit to the policy. Called with the lock held. */
+    protected abstract void apply(PageId pid);
+
+    /** Records a hit on pid, without blocking. */
+    void record(PageId pid) {
+        if (size.get() < capacity) {
+            size.incrementAndGet();
+            queue.add(pid);
+        } else if (lock.tryLock()) {
+            try {
+                drain();
+                apply(pid);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Applies every queued hit. The caller must hold the lock. */
+    void drain() {
+        PageId pid;
+        while ((pid = queue.poll()) != null) {
+            size.decrementAndGet();
+            apply(pid);
+        }
+    }
+}
@@ -75,7 +75,12 @@ public class BTreeChecker {
                                        BTreePageId pageId, Field lowerBound, Field upperBound,
                                        BTreePageId parentId, boolean checkOccupancy, int depth) throws
             TransactionAbortedException, DbException {
+        boolean cached = dirtypages.containsKey(pageId);
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
+        if (!cached) {
+            // the page object stays usable, but must not keep the whole tree pinned
+            Database.getBufferPool().unpinPage(tid, pageId);
+        }
         assert(page.getParentId().equals(parentId));
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -25,6 +26,10 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	// kept open for the life of the index, see DbFileChannel
+	private final DbFileChannel file;
+	private volatile PageChecksums checksums = null;
+	private volatile boolean checksumsDropped = false; // since they were last on
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -39,6 +44,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.file = new DbFileChannel(f);
 	}
 
 	/**
@@ -48,6 +54,18 @@ public class BTreeFile implements DbFile {
 		return f;
 	}
 
+	/**
+	 * Release the open file and the memory mappings of the index, e.g. when
+	 * the Catalog lets go of it.  They are opened again if the index is used
+	 * afterwards.
+	 */
+	public void close() throws IOException {
+		file.close();
+		PageChecksums sums = checksums;
+		if (sums != null)
+			sums.close();
+	}
+
 	/**
 	 * Returns an ID uniquely identifying this BTreeFile. Implementation note:
 	 * you will need to generate this tableid somewhere and ensure that each
@@ -61,6 +79,53 @@ public class BTreeFile implements DbFile {
 		return tableid;
 	}
 
+	/**
+	 * Serve page reads from memory mappings of the file, copying each page
+	 * out of the mapping instead of reading it with a system call.
+	 * 
+	 * @param mapped - whether the file should be memory-mapped
+	 */
+	public void setMemoryMapped(boolean mapped) {
+		file.setMapped(mapped);
+	}
+
+	/**
+	 * Returns true if page reads are served from memory mappings
+	 */
+	public boolean isMemoryMapped() {
+		return file.isMapped();
+	}
+
+	/**
+	 * Check every page read against a checksum stamped when it was written,
+	 * repairing damaged pages from the log.  A page written while they are
+	 * off loses its checksum, and is trusted again when they are turned
+	 * back on.
+	 * 
+	 * @param on - whether pages should be checksummed
+	 * @see PageChecksums
+	 */
+	public void setChecksums(boolean on) {
+		checksumsDropped = false;
+		checksums = on ? new PageChecksums(f) : null;
+	}
+
+	/**
+	 * Returns true if pages are checksummed
+	 */
+	public boolean hasChecksums() {
+		return checksums != null;
+	}
+
+	/**
+	 * Returns the number of pages that failed their checksum since checksums
+	 * were turned on
+	 */
+	public long getCorruptPageCount() {
+		PageChecksums sums = checksums;
+		return sums == null ? 0 : sums.getCorruptions();
+	}
+
 	/**
 	 * Returns the TupleDesc of the table stored in this DbFile.
 	 * 
@@ -79,39 +144,24 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				if (!file.read(pageBuf, 0)) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				pageBuf = check(id, pageBuf, 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				if (!file.read(pageBuf, pageOffset(id.pageNumber()))) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				pageBuf = check(id, pageBuf, pageOffset(id.pageNumber()));
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -128,14 +178,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -149,24 +191,60 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			write(0, data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			write(id.pageNumber(), data, pageOffset(id.pageNumber()));
 		}
 	}
+
+	// check a page read from offset against its checksum, writing back
+	// the bytes the log repaired it to if it fails
+	private byte[] check(BTreePageId id, byte[] data, long offset) throws IOException {
+		PageChecksums sums = checksums;
+		if (sums == null)
+			return data;
+		byte[] repaired = sums.check(id, ByteBuffer.wrap(data));
+		if (repaired == null)
+			return data;
+		file.write(repaired, offset);
+		return repaired;
+	}
+
+	// write page pgNo (0 for the root pointer) at offset, with its checksum
+	// on disk before it; see PageChecksums
+	private void write(int pgNo, byte[] data, long offset) throws IOException {
+		PageChecksums sums = checksums;
+		if (sums == null) {
+			if (!checksumsDropped) {
+				PageChecksums.drop(f);
+				checksumsDropped = true;
+			}
+			file.write(data, offset);
+			return;
+		}
+		sums.prepare(pgNo, data, file, offset);
+		sums.sync();
+		file.write(data, offset);
+		sums.written(pgNo);
+	}
+
+	// the file offset of page pgNo; page numbers start at 1, after the root pointer
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long)(pgNo - 1) * BufferPool.getPageSize();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((file.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -197,16 +275,24 @@ public class BTreeFile implements DbFile {
 					throws DbException, TransactionAbortedException {
 		// some code goes here
 		if (pid.pgcateg() == BTreePageId.LEAF) return (BTreeLeafPage)(this.getPage(tid, dirtypages, pid, perm));
+		boolean cached = dirtypages.containsKey(pid);
 		BTreeInternalPage internalPage = (BTreeInternalPage)(this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY));
 		Iterator<BTreeEntry> iter = internalPage.iterator();
 		BTreeEntry entry = null;
+		BTreePageId child = null;
 		while(iter != null && iter.hasNext()) {
 			entry = iter.next();
-			if (f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey()))
-				return this.findLeafPage(tid, dirtypages, entry.getLeftChild(), Permissions.READ_ONLY, f);
+			if (f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
+				child = entry.getLeftChild();
+				break;
+			}
 		}
 		if(entry==null) throw new DbException("Entry is null.");
-		return this.findLeafPage(tid, dirtypages, entry.getRightChild(), Permissions.READ_ONLY, f);
+		if(child == null) child = entry.getRightChild();
+		// only the leaf stays pinned, besides the pages this operation fetched
+		// read-write, which stay pinned until it ends
+		if(!cached) Database.getBufferPool().unpinPage(tid, pid);
+		return this.findLeafPage(tid, dirtypages, child, Permissions.READ_ONLY, f);
 		//return null;
 	}
 	
@@ -407,6 +493,7 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child) 
 			throws DbException, IOException, TransactionAbortedException {
 
+		boolean cached = dirtypages.containsKey(child);
 		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
 		if(!p.getParentId().equals(pid)) {
@@ -414,6 +501,11 @@ public class BTreeFile implements DbFile {
 			p.setParentId(pid);
 		}
 
+		// drop the pin taken by the read-only lookup, so that splitting or merging
+		// a wide internal node does not pin every one of its children
+		if(!cached) {
+			Database.getBufferPool().unpinPage(tid, child);
+		}
 	}
 	
 	/**
@@ -450,7 +542,9 @@ public class BTreeFile implements DbFile {
 	 * presumably they will soon be dirtied by this transaction.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
-	 * accessed multiple times.
+	 * accessed multiple times. Pages in the dirtypages cache stay pinned, so that the buffer pool
+	 * cannot evict them before it gets them back; the tree operation unpins them all when it ends
+	 * (see unpinPages).  Pages fetched read-only stay pinned until the caller unpins them.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -476,6 +570,19 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Drop the pins that getPage took on the pages in the dirtypages cache, once the tree
+	 * operation that fetched them is over.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages fetched read-write by the operation
+	 */
+	private void unpinPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			Database.getBufferPool().unpinPage(tid, pid);
+		}
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -489,30 +596,33 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} finally {
+			unpinPages(tid, dirtypages);
 		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 	
 	/**
@@ -942,22 +1052,25 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} finally {
+			unpinPages(tid, dirtypages);
 		}
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 
 	/**
@@ -973,15 +1086,12 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(file.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				byte[] rootPtr = BTreeRootPtrPage.createEmptyPageData();
+				byte[] root = BTreeLeafPage.createEmptyPageData();
+				write(0, rootPtr, 0);
+				write(1, root, pageOffset(1));
 			}
 		}
 
@@ -1037,12 +1147,9 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				byte[] data = BTreeInternalPage.createEmptyPageData();
+				emptyPageNo = numPages() + 1;
+				write(emptyPageNo, data, pageOffset(emptyPageNo));
 			}
 		}
 
@@ -1072,10 +1179,8 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		byte[] empty = BTreePage.createEmptyPageData();
+		write(emptyPageNo, empty, pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1205,6 +1310,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1227,6 +1333,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		readAhead = new ReadAhead();
+		readAhead.leafPage(curp);
 		it = curp.iterator();
 	}
 
@@ -1243,12 +1351,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			// done with the current leaf, let the buffer pool evict it
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 			if(nextp == null) {
 				curp = null;
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.leafPage(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1273,6 +1384,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		if (readAhead != null)
+			readAhead.close();
 		it = null;
 		curp = null;
 	}
@@ -1286,6 +1401,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	ReadAhead readAhead = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1318,6 +1434,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
+		readAhead = new ReadAhead();
+		readAhead.leafPage(curp);
 		it = curp.iterator();
 	}
 
@@ -1356,8 +1474,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
+				// done with the current leaf, let the buffer pool evict it
+				Database.getBufferPool().unpinPage(tid, curp.getId());
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.leafPage(curp);
 				it = curp.iterator();
 			}
 		}
@@ -1378,6 +1499,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+		if (readAhead != null)
+			readAhead.close();
 		it = null;
+		curp = null;
 	}
 }
@@ -3,7 +3,19 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,8 +25,30 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Lookups of resident pages take no monitor: the page is found in a
+ * ConcurrentHashMap and pinned, so that a concurrent eviction cannot take it
+ * away. A miss installs a per-page loading future, so concurrent requests
+ * for the same page wait for a single read while requests for other pages
+ * proceed.
+ * <p>
+ * Every page handed out by getPage stays pinned until the transaction
+ * unpins it (unpinPage or releasePage) or completes. Eviction never picks a
+ * pinned page, nor a dirty one: dirty pages belong to transactions that
+ * have not committed yet, and the pool runs in NO STEAL mode.
+ * <p>
+ * Scans may have pages read ahead of them by background threads (see
+ * ReadAhead).  A page read ahead enters the pool unpinned and unlocked, like
+ * any page nobody uses at the moment; the scan still locks and pins it when
+ * it gets to it.
+ * <p>
+ * Scans that read many pages once may keep the pages they read in a
+ * ScanRing of their own instead of the pool, so that they do not push out
+ * the pages other queries use.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe, all fields are final except the static pageSize, which is
+ *   only changed by tests, and the volatile maxReadAhead and readNanos,
+ *   a setting and a running estimate that are read and written whole
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -27,8 +61,114 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private final ConcurrentHashMap<PageId,Page> cache;
+    /** Names of the replacement policies accepted by the constructor. */
+    public static final String CLOCK_POLICY = "clock";
+    public static final String LRU_K_POLICY = "lru-k";
+    public static final String TWO_Q_POLICY = "2q";
+    public static final String DEFAULT_POLICY = CLOCK_POLICY;
+
+    /** Most pages a scan has read ahead of it by default. */
+    public static final int MAX_READ_AHEAD = 32;
+    private static final int READ_AHEAD_THREADS = 2;
+    private static final int READ_AHEAD_QUEUE = 1024;
+
+    /**
+     * A slot of the pool: a resident page and its pin count. A pin count of
+     * -1 marks a frame that is being evicted and can no longer be pinned.
+     */
+    private static class Frame {
+        volatile Page page;
+        final AtomicInteger pins = new AtomicInteger(0);
+
+        Frame(Page page) {
+            this.page = page;
+        }
+
+        /** @return false if the frame is being evicted */
+        boolean pin() {
+            while (true) {
+                int n = pins.get();
+                if (n < 0)
+                    return false;
+                if (pins.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        void unpin(int n) {
+            pins.addAndGet(-n);
+        }
+
+        /** @return true if the frame was unpinned and is now reserved for eviction */
+        boolean claimForEviction() {
+            return pins.compareAndSet(0, -1);
+        }
+
+        void releaseClaim() {
+            pins.set(0);
+        }
+    }
+
+    /** The pins one transaction holds on one frame. */
+    private static class Pin {
+        final Frame frame;
+        int count = 0;
+
+        Pin(Frame frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId,Frame> cache;
+    /** The pins held by each transaction. Each inner map is protected by itself. */
+    private final ConcurrentHashMap<TransactionId,HashMap<PageId,Pin>> pinsHeld;
+    private final ConcurrentHashMap<PageId,FutureTask<Page>> loading;
+    /** Frames in use, including frames reserved by loads in progress. */
+    private final AtomicInteger usedFrames;
+    private final Object evictionLock = new Object();
     private final int numPages;
+    private final ReplacementPolicy policy;
+    private final LockManager lockManager;
+
+    private volatile int maxReadAhead;
+    private final ThreadPoolExecutor readers;
+    /** Pages read ahead that nobody has asked for yet. */
+    private final Set<PageId> prefetched;
+    /** Frames reserved by reads ahead in progress. */
+    private final AtomicInteger readingAhead;
+    /**
+     * Bumped when a page on disk has changed under the pool, and by
+     * discardPage, so that reads ahead that may have seen an older version
+     * are dropped; changing counts the changes in progress.
+     */
+    private final AtomicLong changes;
+    private final AtomicInteger changing;
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder prefetchWaste = new LongAdder();
+    private volatile long readNanos = 0; // moving average of the time a page read takes
+    /** The rings that hold pages; see ScanRing. */
+    private final ConcurrentHashMap<ScanRing,Boolean> rings;
+
+    /** A read ahead of a page, which a request for the page runs itself if no thread has yet. */
+    private class Prefetch extends FutureTask<Page> {
+        private final PageId pid;
+
+        Prefetch(final PageId pid, final ScanRing ring) {
+            super(new Callable<Page>() {
+                private final long epoch = changes.get();
+
+                public Page call() {
+                    return readAhead(pid, epoch, ring);
+                }
+            });
+            this.pid = pid;
+        }
+
+        protected void done() {
+            loading.remove(pid, this);
+        }
+    }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -36,9 +176,100 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * pages to evict with the named replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyName one of CLOCK_POLICY, LRU_K_POLICY or TWO_Q_POLICY
+     * @throws IllegalArgumentException if the policy name is unknown
+     */
+    public BufferPool(int numPages, String policyName) {
         // some code goes here
         this.numPages=numPages;
         this.cache=new ConcurrentHashMap<>();
+        this.loading=new ConcurrentHashMap<>();
+        this.pinsHeld=new ConcurrentHashMap<>();
+        this.usedFrames=new AtomicInteger(0);
+        this.policy=createPolicy(policyName, numPages);
+        this.lockManager=new LockManager();
+        this.maxReadAhead=Math.min(MAX_READ_AHEAD, numPages / 4);
+        this.prefetched=Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+        this.readingAhead=new AtomicInteger(0);
+        this.changes=new AtomicLong(0);
+        this.changing=new AtomicInteger(0);
+        this.rings=new ConcurrentHashMap<>();
+        this.readers=new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(READ_AHEAD_QUEUE), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb read-ahead");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.readers.allowCoreThreadTimeOut(true);
+    }
+
+    static ReplacementPolicy createPolicy(String policyName, int numPages) {
+        if (CLOCK_POLICY.equalsIgnoreCase(policyName))
+            return new ClockPolicy(numPages);
+        if (LRU_K_POLICY.equalsIgnoreCase(policyName))
+            return new LruKPolicy(numPages);
+        if (TWO_Q_POLICY.equalsIgnoreCase(policyName))
+            return new TwoQueuePolicy(numPages);
+        throw new IllegalArgumentException("Unknown replacement policy " + policyName);
+    }
+
+    /** @return the replacement policy, which also holds the hit/miss/eviction counters */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
+    }
+
+    /**
+     * Set the most pages a scan may have read ahead of it, 0 to turn
+     * reading ahead off.  The default is a quarter of the pool, up to
+     * MAX_READ_AHEAD.
+     */
+    public void setReadAhead(int pages) {
+        maxReadAhead = Math.max(pages, 0);
+    }
+
+    /** @return the most pages a scan may have read ahead of it */
+    public int getReadAhead() {
+        return maxReadAhead;
+    }
+
+    /** @return the number of pages read into the pool ahead of a scan */
+    public long getPrefetchCount() {
+        return prefetches.sum();
+    }
+
+    /** @return the number of pages read ahead that were then asked for */
+    public long getPrefetchHitCount() {
+        return prefetchHits.sum();
+    }
+
+    /** @return the number of pages read ahead that left the pool unused */
+    public long getPrefetchWasteCount() {
+        return prefetchWaste.sum();
+    }
+
+    /**
+     * @return true if a scan of a table with this many pages should read
+     *   it through a ScanRing: if the table does not fit in the pool, so
+     *   that the scan would push out its own pages as well as everyone
+     *   else's
+     */
+    public boolean isLargeScan(int pages) {
+        return pages > numPages;
+    }
+
+    /** @return the average time a page read from disk takes, in nanoseconds */
+    long getReadNanos() {
+        return readNanos;
     }
     
     public static int getPageSize() {
@@ -65,32 +296,441 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The returned page is pinned: it cannot be evicted until tid calls
+     * unpinPage or releasePage on it, or completes.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, final PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        Page p;
-        synchronized(this) {
-            p = cache.get(pid);
-            if(p == null) {
-                if(cache.size() >= numPages) {
-                    evictPage();
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like getPage, for a scan that keeps the
+     * pages it reads in ring rather than in the pool.  A page already in
+     * the pool, or in any ring, is used from there; otherwise it is read
+     * into ring, taking the place of the page ring read longest ago.  Pages
+     * from rings are not pinned.
+     * <p>
+     * Requests for pages in a ring without a ring, or with READ_WRITE
+     * permission, move the page from the ring to the pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's ring, or null to read the page into the pool
+     * @see ScanRing
+     */
+    public Page getPage(TransactionId tid, final PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        lockManager.acquire(tid, pid, perm);
+        if (perm != Permissions.READ_ONLY)
+            ring = null;
+
+        while (true) {
+            Frame frame = cache.get(pid);
+            if (frame != null) {
+                if (frame.pin()) {
+                    recordPin(tid, pid, frame);
+                    // the policy counted the read ahead as the first reference
+                    if (prefetched.remove(pid))
+                        prefetchHits.increment();
+                    else
+                        policy.recordHit(pid);
+                    return frame.page;
                 }
+                // the frame is on its way out; load the page again once it is gone
+                Thread.yield();
+                continue;
+            }
+
+            if (!rings.isEmpty()) {
+                Page p = ring == null ? promote(tid, pid) : fromRings(pid);
+                if (p != null)
+                    return p;
+            }
 
-                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                cache.put(pid, p);
+            FutureTask<Page> load = new FutureTask<Page>(new Callable<Page>() {
+                public Page call() {
+                    return read(pid);
+                }
+            });
+            FutureTask<Page> inFlight = loading.putIfAbsent(pid, load);
+            if (inFlight != null) {
+                // someone else is reading this page; wait for them and retry.
+                // A read ahead still waiting for a thread is done right here
+                if (inFlight instanceof Prefetch)
+                    inFlight.run();
+                awaitLoad(inFlight);
+                continue;
+            }
+
+            try {
+                if (cache.containsKey(pid)) {
+                    // a load finished between our lookup and putIfAbsent
+                    load.cancel(false);
+                    continue;
+                }
+                if (ring != null) {
+                    load.run();
+                    Page p = awaitLoad(load);
+                    addToRing(ring, p);
+                    return p;
+                }
+                reserveFrame();
+                load.run();
+                Page p;
+                try {
+                    p = awaitLoad(load);
+                } catch (RuntimeException e) {
+                    usedFrames.decrementAndGet();
+                    throw e;
+                } catch (DbException e) {
+                    usedFrames.decrementAndGet();
+                    throw e;
+                }
+                frame = new Frame(p);
+                frame.pin();
+                if (cache.putIfAbsent(pid, frame) != null) {
+                    // an insert or delete installed its own version meanwhile
+                    usedFrames.decrementAndGet();
+                    continue;
+                }
+                recordPin(tid, pid, frame);
+                policy.recordMiss(pid);
+                return p;
+            } finally {
+                loading.remove(pid, load);
             }
         }
+    }
 
+    /** @return pid from any ring, or null */
+    private Page fromRings(PageId pid) {
+        for (ScanRing r : rings.keySet()) {
+            Page p = r.get(pid);
+            if (p != null) {
+                if (prefetched.remove(pid))
+                    prefetchHits.increment();
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Move pid from the rings that hold it to the pool, pinned for tid.
+     *
+     * @return the page, or null if no ring holds it or another version of
+     *   it entered the pool meanwhile
+     */
+    private Page promote(TransactionId tid, PageId pid) throws DbException {
+        Page p = null;
+        for (ScanRing r : rings.keySet()) {
+            Page q = r.remove(pid);
+            if (q != null)
+                p = q;
+        }
+        if (p == null)
+            return null;
+        reserveFrame();
+        Frame frame = new Frame(p);
+        frame.pin();
+        if (cache.putIfAbsent(pid, frame) != null) {
+            usedFrames.decrementAndGet();
+            return null;
+        }
+        recordPin(tid, pid, frame);
+        policy.recordMiss(pid);
+        if (prefetched.remove(pid))
+            prefetchHits.increment();
         return p;
     }
 
+    private void addToRing(ScanRing ring, Page p) {
+        rings.put(ring, Boolean.TRUE);
+        PageId dropped = ring.add(p);
+        if (dropped != null && prefetched.remove(dropped))
+            prefetchWaste.increment();
+    }
+
+    /** Drop pid from every ring. */
+    private void forgetRingCopies(PageId pid) {
+        for (ScanRing r : rings.keySet()) {
+            if (r.remove(pid) != null && prefetched.remove(pid))
+                prefetchWaste.increment();
+        }
+    }
+
     /**
-     * Releases the lock on a page.
+     * Drop the pages of a ring whose scan is done.  The ring may be used
+     * again.
+     */
+    public void releaseScanRing(ScanRing ring) {
+        rings.remove(ring);
+        for (PageId pid : ring.clear()) {
+            if (prefetched.remove(pid))
+                prefetchWaste.increment();
+        }
+    }
+
+    /** Read pid from its file, timing the read. */
+    private Page read(PageId pid) {
+        long start = System.nanoTime();
+        Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        long took = System.nanoTime() - start;
+        long avg = readNanos;
+        readNanos = avg == 0 ? took : avg - (avg >> 3) + (took >> 3);
+        return p;
+    }
+
+    /**
+     * Start reading pid into the pool, or into ring if it is not null, in
+     * the background, unless it is there already or on its way.
+     */
+    void prefetchPage(PageId pid, ScanRing ring) {
+        if (maxReadAhead == 0 || cache.containsKey(pid) || loading.containsKey(pid))
+            return;
+        if (ring != null && ring.get(pid) != null)
+            return;
+        Prefetch task = new Prefetch(pid, ring);
+        if (loading.putIfAbsent(pid, task) != null)
+            return;
+        try {
+            readers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Read pid into the pool in the calling thread unless it is there
+     * already, for background tasks that have to see a page to know which
+     * one to read ahead next.  The page is not pinned or locked, so it may
+     * change or leave the pool at any time.
+     *
+     * @return the page, or null if it could not be read
+     */
+    Page prefetchNow(PageId pid) {
+        while (true) {
+            Frame frame = cache.get(pid);
+            if (frame != null)
+                return frame.page;
+            FutureTask<Page> task = loading.get(pid);
+            if (task == null) {
+                Prefetch read = new Prefetch(pid, null);
+                task = loading.putIfAbsent(pid, read);
+                if (task == null)
+                    task = read;
+            }
+            if (task instanceof Prefetch)
+                task.run();
+            try {
+                if (awaitLoad(task) == null && task instanceof Prefetch)
+                    return null;
+            } catch (RuntimeException e) {
+                return null;
+            } catch (DbException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Run a task that reads pages ahead in the background.
+     *
+     * @return false if too much is being read ahead already to take it
+     */
+    boolean readAhead(Runnable task) {
+        try {
+            readers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The body of a Prefetch: read pid into a free frame of the pool, if
+     * one can be had without waiting for a page to be unpinned, or into
+     * ring if it is not null and still in use.
+     *
+     * @param epoch the value of changes when the read was requested
+     * @return the page, or null if it was not added to the pool or ring
+     */
+    private Page readAhead(PageId pid, long epoch, ScanRing ring) {
+        if (changing.get() > 0 || cache.containsKey(pid))
+            return null;
+        if (ring == null) {
+            try {
+                reserveFrame();
+            } catch (DbException e) {
+                return null;
+            }
+        }
+        readingAhead.incrementAndGet();
+        try {
+            Page p = null;
+            try {
+                p = read(pid);
+            } catch (RuntimeException e) {
+                // left for a request of the page to report
+            }
+            synchronized (this) {
+                // a page written or discarded meanwhile may have changed on disk
+                if (p != null && changes.get() == epoch && changing.get() == 0) {
+                    if (ring != null) {
+                        if (!cache.containsKey(pid) && rings.containsKey(ring)) {
+                            addToRing(ring, p);
+                            prefetched.add(pid);
+                            prefetches.increment();
+                            return p;
+                        }
+                        return null;
+                    }
+                    if (cache.putIfAbsent(pid, new Frame(p)) == null) {
+                        prefetched.add(pid);
+                        prefetches.increment();
+                        policy.recordMiss(pid);
+                        return p;
+                    }
+                }
+            }
+            if (ring == null)
+                usedFrames.decrementAndGet();
+            return null;
+        } finally {
+            readingAhead.decrementAndGet();
+        }
+    }
+
+    private void recordPin(TransactionId tid, PageId pid, Frame frame) {
+        HashMap<PageId,Pin> pins = pinsHeld.get(tid);
+        if (pins == null) {
+            pins = new HashMap<PageId,Pin>();
+            HashMap<PageId,Pin> prev = pinsHeld.putIfAbsent(tid, pins);
+            if (prev != null)
+                pins = prev;
+        }
+        synchronized (pins) {
+            Pin pin = pins.get(pid);
+            if (pin == null || pin.frame != frame) {
+                // a pin on a frame that has since been discarded is stale
+                pin = new Pin(frame);
+                pins.put(pid, pin);
+            }
+            pin.count++;
+        }
+    }
+
+    /**
+     * Drop one pin, or all pins, that tid holds on pid.
+     */
+    private void unpin(TransactionId tid, PageId pid, boolean all) {
+        HashMap<PageId,Pin> pins = pinsHeld.get(tid);
+        if (pins == null)
+            return;
+        synchronized (pins) {
+            Pin pin = pins.get(pid);
+            if (pin == null)
+                return;
+            int n = all ? pin.count : 1;
+            pin.frame.unpin(n);
+            pin.count -= n;
+            if (pin.count == 0)
+                pins.remove(pid);
+        }
+    }
+
+    /**
+     * Tell the pool that tid no longer uses the page it got from getPage,
+     * so that it may be evicted. Unlike releasePage, this keeps the lock.
+     * Each call undoes one getPage.
+     *
+     * @param tid the ID of the transaction that got the page
+     * @param pid the ID of the page
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        unpin(tid, pid, false);
+    }
+
+    /** @return the number of pins on the page, 0 if it is not resident */
+    public int getPinCount(PageId pid) {
+        Frame frame = cache.get(pid);
+        return frame == null ? 0 : Math.max(frame.pins.get(), 0);
+    }
+
+    /**
+     * Wait for a page load to finish.
+     *
+     * @return the loaded page, or null if the load was cancelled
+     */
+    private Page awaitLoad(FutureTask<Page> load) throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (CancellationException e) {
+                    return null;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new DbException("Unable to read page: " + e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reserve a frame for a page about to be added to the pool, evicting
+     * a page if the pool is full.
+     */
+    private void reserveFrame() throws DbException {
+        while (true) {
+            int used = usedFrames.get();
+            if (used < numPages) {
+                if (usedFrames.compareAndSet(used, used + 1))
+                    return;
+            } else {
+                evictPage();
+            }
+        }
+    }
+
+    /**
+     * Put a page that was modified by an insert or delete into the pool,
+     * replacing any version of it that is already there.
+     */
+    private void installPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Frame frame = cache.get(pid);
+        if (frame != null) {
+            frame.page = page;
+            return;
+        }
+        reserveFrame();
+        frame = cache.putIfAbsent(pid, new Frame(page));
+        if (frame == null) {
+            policy.recordMiss(pid);
+        } else {
+            usedFrames.decrementAndGet();
+            frame.page = page;
+        }
+    }
+
+    /**
+     * Releases the lock on a page, and drops every pin tid holds on it.
      * Calling this is very risky, and may result in wrong behavior. Think hard
      * about who needs to call this and why, and why they can run the risk of
      * calling it.
@@ -101,6 +741,8 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        unpin(tid, pid, true);
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -111,13 +753,14 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -131,6 +774,33 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        try {
+            if (commit) {
+                flushPages(tid);
+            } else {
+                synchronized (this) {
+                    // throw away the changes; the next access rereads the page
+                    for (Frame frame : cache.values()) {
+                        Page page = frame.page;
+                        if (tid.equals(page.isDirty()))
+                            discardPage(page.getId());
+                    }
+                }
+            }
+        } finally {
+            for (ScanRing ring : rings.keySet()) {
+                if (tid.equals(ring.getTransactionId()))
+                    releaseScanRing(ring);
+            }
+            HashMap<PageId,Pin> pins = pinsHeld.remove(tid);
+            if (pins != null) {
+                synchronized (pins) {
+                    for (Pin pin : pins.values())
+                        pin.frame.unpin(pin.count);
+                }
+            }
+            lockManager.releaseAll(tid);
+        }
     }
 
     /**
@@ -157,11 +827,67 @@ public class BufferPool {
         while (iter.hasNext()) {
             Page p = iter.next();
             p.markDirty(true, tid);
-            this.cache.put(p.getId(), p);
+            installPage(p);
         }
 
     }
 
+    /**
+     * Add many tuples to the specified table on behalf of transaction tid.
+     * Heap files pack them into new pages at the end of the file and write
+     * those directly, without passing them through the pool; see
+     * HeapFile#appendTuples.  Other files get them one at a time through
+     * insertTuple.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @return the number of tuples added
+     */
+    public int appendTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile)
+            return ((HeapFile)file).appendTuples(tid, tuples);
+        int count = 0;
+        while (tuples.hasNext()) {
+            insertTuple(tid, tableId, tuples.next());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Lock pages that are about to be added to the end of a file for tid,
+     * and log each of them as an update of an empty page, forcing the log
+     * so that they may be written straight away.  The caller writes the
+     * pages, which never enter the pool, and tells the log once they are
+     * written.
+     */
+    void logNewPages(TransactionId tid, List<? extends Page> pages)
+        throws IOException, TransactionAbortedException {
+        for (Page page : pages)
+            lockManager.acquire(tid, page.getId(), Permissions.READ_WRITE);
+        for (Page page : pages)
+            Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+        Database.getLogFile().force();
+    }
+
+    /**
+     * Note that pages on disk are about to change without passing through
+     * the pool, as when a file writes pages it adds itself.  Must be
+     * followed by endChange once they are written.
+     */
+    void beginChange() {
+        changing.incrementAndGet();
+    }
+
+    /** Note that the change begun by beginChange is on disk. */
+    void endChange() {
+        changes.incrementAndGet();
+        changing.decrementAndGet();
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -183,10 +909,7 @@ public class BufferPool {
         ArrayList<Page> dirty = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
         for (Page page : dirty) {
             page.markDirty(true, tid);
-            if (!cache.containsKey(page.getId()) && cache.size() >= numPages)
-                evictPage();
-            cache.remove(page.getId());
-            cache.put(page.getId(), page);
+            installPage(page);
         }
     }
 
@@ -199,8 +922,6 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         for (PageId pid : cache.keySet()) flushPage(pid);
-
-
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -214,43 +935,144 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        cache.remove(pid);
+        changes.incrementAndGet();
+        forgetRingCopies(pid);
+        if (cache.remove(pid) != null) {
+            usedFrames.decrementAndGet();
+            policy.remove(pid);
+            if (prefetched.remove(pid))
+                prefetchWaste.increment();
+        }
+        // the page goes back to its last written version, which may have
+        // room that a rolled back insert had used up
+        try {
+            FreeSpaceMap.mayHaveRoom(pid);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = cache.get(pid);
-        if (page.isDirty() != null) {
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        Frame frame = cache.get(pid);
+        if (frame != null)
+            writeIfDirty(frame.page);
+    }
+
+    /**
+     * Write a dirty page to disk, logging the update first (write-ahead
+     * logging) so that recovery can redo or undo it.
+     */
+    private void writeIfDirty(Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null) {
+            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            Database.getLogFile().force();
+            write(page);
         }
     }
 
+    private void write(Page page) throws IOException {
+        beginChange();
+        try {
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        } finally {
+            endChange();
+        }
+        page.markDirty(false, null);
+        Database.getLogFile().pageWritten(page.getId());
+    }
+
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * The log is forced up to the update records of the pages without
+     * holding the pool lock, so that with group commit one force covers
+     * the records of every transaction committing at the same time.  The
+     * pages cannot change meanwhile, since tid holds their locks.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        long end;
+        synchronized (this) {
+            for (Frame frame : cache.values()) {
+                Page page = frame.page;
+                if (tid.equals(page.isDirty())) {
+                    Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+                    dirty.add(page);
+                }
+            }
+            if (dirty.isEmpty())
+                return;
+            end = Database.getLogFile().getCurrentOffset();
+        }
+        // one force covers the update records of all the pages
+        Database.getLogFile().forceTo(end);
+        synchronized (this) {
+            for (Page page : dirty) {
+                if (tid.equals(page.isDirty()))
+                    write(page);
+                // the committed state is the new baseline for recovery
+                page.setBeforeImage();
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The page is chosen by the replacement policy among the pages that are
+     * neither pinned nor dirty; since the pool does not steal, dirty pages
+     * stay until their transaction commits or aborts. Evictions are
+     * serialized with each other, but not with lookups of resident pages.
+     *
+     * @throws DbException if every page in the pool is pinned or dirty
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        PageId key = cache.keySet().iterator().next();
-        try {
-            flushPage(key);
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized (evictionLock) {
+            if (usedFrames.get() < numPages) {
+                // another thread made room while we waited
+                return;
+            }
+            Iterator<PageId> victims = policy.victims();
+            while (victims.hasNext()) {
+                PageId key = victims.next();
+                Frame frame = cache.get(key);
+                if (frame == null) {
+                    // the policy is behind the cache; just forget the page
+                    policy.remove(key);
+                    continue;
+                }
+                if (frame.page.isDirty() != null || !frame.claimForEviction())
+                    continue;
+                if (frame.page.isDirty() != null) {
+                    // dirtied between the check and the claim
+                    frame.releaseClaim();
+                    continue;
+                }
+                if (cache.remove(key, frame)) {
+                    usedFrames.decrementAndGet();
+                    policy.recordEviction(key);
+                    if (prefetched.remove(key))
+                        prefetchWaste.increment();
+                }
+                return;
+            }
+            if (readingAhead.get() > 0) {
+                // frames held by reads ahead become evictable once they finish
+                Thread.yield();
+                return;
+            }
         }
-        cache.remove(key);
+        throw new DbException("BufferPool: all " + numPages
+                + " pages are pinned or hold uncommitted changes, none can be evicted");
     }
 
 }
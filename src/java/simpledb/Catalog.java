@@ -49,12 +49,29 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
         int id= file.getId();
-        getFileByID.put(id,file);
+        Integer oldId = getIDByName.get(name);
+        if (oldId != null && getFileByID.get(oldId) != file)
+            close(getFileByID.get(oldId));
+        DbFile old = getFileByID.put(id,file);
+        if (old != null && old != file)
+            close(old);
         getNameByID.put(id,name);
         getKeyByID.put(id,pkeyField);
         getIDByName.put(name,id);
     }
 
+    // release the open file of a table the catalog lets go of
+    private static void close(DbFile file) {
+        try {
+            if (file instanceof HeapFile)
+                ((HeapFile) file).close();
+            else if (file instanceof BTreeFile)
+                ((BTreeFile) file).close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -125,6 +142,8 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (DbFile file : getFileByID.values())
+            close(file);
         getNameByID.clear();
         getFileByID.clear();
         getKeyByID.clear();
@@ -133,6 +152,17 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table, e.g. "emp (id int pk, name string) mmap".
+     * The field types are int, string and varchar; varchar fields are stored
+     * with their actual length (see Type.VARCHAR_TYPE).  Every string holds up
+     * to Type.STRING_LEN bytes, so a varchar may also be written
+     * varchar(n) for n = Type.STRING_LEN, and other lengths are rejected.  The options
+     * after the field list are:
+     * <ul>
+     * <li> mmap: serve the table's page reads from a memory mapping of its file
+     * <li> checksum: check the table's pages against checksums kept in a
+     *   ".crc" file next to it (see PageChecksums)
+     * </ul>
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -142,10 +172,10 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [option ...]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
-                String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String fields = line.substring(line.indexOf("(") + 1, line.lastIndexOf(")")).trim();
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -153,11 +183,18 @@ public class Catalog {
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
-                    if (els2[1].trim().toLowerCase().equals("int"))
+                    String type = els2[1].trim().toLowerCase();
+                    if (type.equals("int"))
                         types.add(Type.INT_TYPE);
-                    else if (els2[1].trim().toLowerCase().equals("string"))
+                    else if (type.equals("string"))
                         types.add(Type.STRING_TYPE);
-                    else {
+                    else if (type.equals("varchar") || isVarchar(type))
+                        types.add(Type.VARCHAR_TYPE);
+                    else if (type.startsWith("varchar(")) {
+                        System.out.println("Unsupported type " + els2[1]
+                                + ", varchar fields hold up to " + Type.STRING_LEN + " bytes");
+                        System.exit(0);
+                    } else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
@@ -174,6 +211,19 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String options = line.substring(line.lastIndexOf(")") + 1).trim();
+                for (String option : options.split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.toLowerCase().equals("mmap"))
+                        tabHf.setMemoryMapped(true);
+                    else if (option.toLowerCase().equals("checksum"))
+                        tabHf.setChecksums(true);
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -185,5 +235,17 @@ public class Catalog {
             System.exit(0);
         }
     }
+
+    // true for varchar(n) with n = Type.STRING_LEN, the only length fields have
+    private static boolean isVarchar(String type) {
+        if (!type.startsWith("varchar(") || !type.endsWith(")"))
+            return false;
+        try {
+            int n = Integer.parseInt(type.substring("varchar(".length(), type.length() - 1).trim());
+            return n == Type.STRING_LEN;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }
 
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a ring of frames,
+ * each with a reference bit that is set on every access. The clock hand
+ * sweeps the ring, clearing set bits, and proposes the first page whose bit
+ * is already clear.
+ * <p>
+ * Setting a reference bit takes no lock, so hits on resident pages do not
+ * contend with each other; only admissions, evictions and the hand itself
+ * are serialized.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy extends AbstractReplacementPolicy {
+
+    private static class Entry {
+        final PageId pid;
+        volatile boolean referenced = true;
+
+        Entry(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    // frames, used, freeFrames and hand are protected by this
+    private Entry[] frames;
+    private final ConcurrentHashMap<PageId, Entry> entries = new ConcurrentHashMap<PageId, Entry>();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>();
+    private int used = 0;
+    private int hand = 0;
+
+    /**
+     * @param numPages the expected number of resident pages; the ring grows
+     *   if the BufferPool ever holds more.
+     */
+    public ClockPolicy(int numPages) {
+        frames = new Entry[Math.max(numPages, 1)];
+    }
+
+    protected void accessed(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e != null)
+            e.referenced = true;
+    }
+
+    protected synchronized void admitted(PageId pid) {
+        if (frameOf.containsKey(pid)) {
+            accessed(pid);
+            return;
+        }
+        int frame;
+        if (!freeFrames.isEmpty()) {
+            frame = freeFrames.pop();
+        } else {
+            if (used == frames.length)
+                frames = Arrays.copyOf(frames, frames.length * 2);
+            frame = used++;
+        }
+        // a newly loaded page gets one sweep of grace, like any referenced page
+        Entry e = new Entry(pid);
+        frames[frame] = e;
+        frameOf.put(pid, frame);
+        entries.put(pid, e);
+    }
+
+    protected synchronized void evicted(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            entries.remove(pid);
+            freeFrames.push(frame);
+        }
+    }
+
+    /**
+     * Sweeps the clock hand. Each page with its reference bit set loses it
+     * and is passed over; the iteration ends after two full turns, by which
+     * point every resident page has been proposed.
+     */
+    public Iterator<PageId> victims() {
+        return new Iterator<PageId>() {
+            private int steps;
+            private PageId next;
+
+            {
+                synchronized (ClockPolicy.this) {
+                    steps = 2 * used;
+                }
+            }
+
+            public boolean hasNext() {
+                if (next != null)
+                    return true;
+                synchronized (ClockPolicy.this) {
+                    while (next == null && steps-- > 0 && used > 0) {
+                        Entry e = frames[hand];
+                        hand = (hand + 1) % used;
+                        if (e == null)
+                            continue;
+                        if (e.referenced)
+                            e.referenced = false;
+                        else
+                            next = e.pid;
+                    }
+                }
+                return next != null;
+            }
+
+            public PageId next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                PageId result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -21,9 +21,21 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /**
+     * System property naming the BufferPool replacement policy, e.g.
+     * -Dsimpledb.replacementPolicy=2q. Defaults to BufferPool.DEFAULT_POLICY.
+     */
+    public final static String REPLACEMENT_POLICY_PROPERTY = "simpledb.replacementPolicy";
+    private final String _policyName;
+
     private Database() {
+        this(System.getProperty(REPLACEMENT_POLICY_PROPERTY, BufferPool.DEFAULT_POLICY));
+    }
+
+    private Database(String policyName) {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _policyName = policyName;
+        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, policyName);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -59,7 +71,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, _instance.get()._policyName));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -78,4 +90,12 @@ public class Database {
         _instance.set(new Database());
     }
 
+    /**
+     * Reset the database with a BufferPool that uses the named replacement
+     * policy (see BufferPool.CLOCK_POLICY and friends).
+     */
+    public static void reset(String policyName) {
+        _instance.set(new Database(policyName));
+    }
+
 }
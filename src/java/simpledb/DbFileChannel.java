@@ -0,0 +1,182 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * The backing file of a DbFile, opened once and kept open.  Reads and
+ * writes are positional, so concurrent callers never share a file pointer,
+ * and the length of the file is cached instead of asking the file system
+ * on every call.
+ * <p>
+ * The file is opened on first use.  Until then nothing is created, so a
+ * DbFile over a missing file still reports no pages.  The cached length
+ * only follows writes made through this object; writing the file by other
+ * means without changing its length is fine.
+ * <p>
+ * In memory-mapped mode the file is also mapped read-only in chunks of
+ * MAP_CHUNK bytes, and reads are served from the mappings.  Writes still
+ * go through the channel; the mappings share the OS page cache with it, so
+ * they see the new bytes at once.  A chunk that was mapped while shorter
+ * than MAP_CHUNK is mapped again once the file has grown past its end.
+ */
+class DbFileChannel {
+
+    /** Size of the pieces a memory-mapped file is mapped in. */
+    static final int MAP_CHUNK = 64 * 1024 * 1024;
+
+    private final File f;
+    private volatile FileChannel channel = null;
+    private long length = 0; // protected by this once channel is set
+    private volatile boolean mapped = false;
+    private final ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>(); // protected by this
+
+    DbFileChannel(File f) {
+        this.f = f;
+    }
+
+    // open the file, creating it if create is set; null if it does not exist
+    private FileChannel channel(boolean create) throws IOException {
+        FileChannel c = channel;
+        if (c != null)
+            return c;
+        synchronized (this) {
+            if (channel == null) {
+                if (!create && !f.exists())
+                    return null;
+                RandomAccessFile raf;
+                try {
+                    raf = new RandomAccessFile(f, "rw");
+                } catch (FileNotFoundException e) {
+                    // read-only tables can still be scanned
+                    if (create)
+                        throw e;
+                    raf = new RandomAccessFile(f, "r");
+                }
+                length = raf.length();
+                channel = raf.getChannel();
+            }
+            return channel;
+        }
+    }
+
+    /** @return the length of the file, in bytes */
+    long length() throws IOException {
+        if (channel(false) == null)
+            return 0;
+        synchronized (this) {
+            return length;
+        }
+    }
+
+    /** Serve reads from memory mappings of the file, or stop doing so. */
+    synchronized void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        if (!mapped)
+            chunks.clear(); // the mappings go away once they are collected
+    }
+
+    /** @return true if reads are served from memory mappings */
+    boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @return a read-only view of len bytes at position pos of the mapped
+     *   file, or null if the file is not mapped, ends before pos + len, or
+     *   the range straddles two chunks.
+     */
+    ByteBuffer slice(long pos, int len) throws IOException {
+        if (!mapped || channel(false) == null)
+            return null;
+        int chunkNo = (int)(pos / MAP_CHUNK);
+        int start = (int)(pos - (long)chunkNo * MAP_CHUNK);
+        if (start + len > MAP_CHUNK)
+            return null;
+        MappedByteBuffer chunk;
+        synchronized (this) {
+            if (pos + len > length)
+                return null;
+            while (chunks.size() <= chunkNo)
+                chunks.add(null);
+            chunk = chunks.get(chunkNo);
+            if (chunk == null || chunk.capacity() < start + len) {
+                // not mapped yet, or the file has grown past the old mapping
+                long chunkPos = (long)chunkNo * MAP_CHUNK;
+                chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkPos,
+                        Math.min(MAP_CHUNK, length - chunkPos));
+                chunks.set(chunkNo, chunk);
+            }
+        }
+        ByteBuffer view = chunk.duplicate();
+        view.position(start);
+        view.limit(start + len);
+        return view.slice();
+    }
+
+    /**
+     * Read data.length bytes at position pos.
+     *
+     * @return false if the file ends before pos + data.length
+     */
+    boolean read(byte[] data, long pos) throws IOException {
+        FileChannel c = channel(false);
+        if (c == null || pos + data.length > length())
+            return false;
+        ByteBuffer view = slice(pos, data.length);
+        if (view != null) {
+            view.get(data);
+            return true;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (c.read(buf, pos + buf.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Write data at position pos, extending the file if needed. */
+    void write(byte[] data, long pos) throws IOException {
+        FileChannel c = channel(true);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining())
+            c.write(buf, pos + buf.position());
+        synchronized (this) {
+            length = Math.max(length, pos + data.length);
+        }
+    }
+
+    /**
+     * Write data at the end of the file.
+     *
+     * @return the position data was written at
+     */
+    synchronized long append(byte[] data) throws IOException {
+        // held across the write, so that concurrent appends get their own
+        // space and no mapping ever reaches past the bytes on disk
+        channel(true);
+        long pos = length;
+        write(data, pos);
+        return pos;
+    }
+
+    /** Force the bytes written so far to disk. */
+    void force() throws IOException {
+        FileChannel c = channel(false);
+        if (c != null)
+            c.force(false);
+    }
+
+    /** Close the file; it is opened again on the next call. */
+    synchronized void close() throws IOException {
+        chunks.clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
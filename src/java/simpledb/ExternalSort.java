@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The tuples of a DbIterator in ascending order of one field, for
+ * SortMergeJoin.  A child that already comes in that order, such as a scan
+ * of a B+ tree file on its key, is passed through as it is.  Otherwise the
+ * child is read when the sort is opened: if it fits in memoryPages pages
+ * it is sorted in memory, and if not, runs of that many pages' worth of
+ * tuples are sorted and written to SpillFiles, and the runs are merged in
+ * one pass as the tuples are read.  Rewinding starts the merge again
+ * without reading the child again.
+ * <p>
+ * A sort that is to be read from the middle many times (see seek) merges
+ * its runs into a single SpillFile once, after sorting them, so that it can
+ * start reading from near any tuple without merging again.
+ * <p>
+ * The child must be open before the sort is, and the spilled runs last
+ * until delete is called.
+ */
+class ExternalSort extends AbstractDbFileIterator {
+
+    private final DbIterator child;
+    private final boolean presorted;
+    private final boolean seekable;
+    private final long memoryTuples;
+    private final TupleComparator order;
+
+    private ArrayList<Tuple> memory = null;       // the tuples, if they fit
+    private final ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private boolean loaded = false;
+    private int spilled = 0;                      // runs written, even if deleted
+
+    private Iterator<Tuple> memoryIt = null;
+    private DbFileIterator[] readers = null;
+    private PriorityQueue<Head> heads = null;
+
+    /** The next tuple of one run, waiting to be merged. */
+    private static class Head {
+        final Tuple t;
+        final int run;
+
+        Head(Tuple t, int run) {
+            this.t = t;
+            this.run = run;
+        }
+    }
+
+    /**
+     * @param child the tuples to sort
+     * @param field the field to sort them on
+     * @param memoryPages the pages of tuples to sort in memory at a time, at
+     *   least 1
+     * @param presorted true if child already comes in order of field
+     */
+    public ExternalSort(DbIterator child, int field, int memoryPages, boolean presorted) {
+        this(child, field, memoryPages, presorted, false);
+    }
+
+    /**
+     * @param child the tuples to sort
+     * @param field the field to sort them on
+     * @param memoryPages the pages of tuples to sort in memory at a time, at
+     *   least 1
+     * @param presorted true if child already comes in order of field
+     * @param seekable true if the sort is to be read from the middle with
+     *   seek, so spilled runs should be merged into one file
+     */
+    public ExternalSort(DbIterator child, int field, int memoryPages, boolean presorted,
+            boolean seekable) {
+        this.child = child;
+        this.presorted = presorted;
+        this.seekable = seekable;
+        this.memoryTuples = Math.max(1, (long) memoryPages * BufferPool.getPageSize()
+                / child.getTupleDesc().getSize());
+        this.order = new TupleComparator(field, true);
+    }
+
+    /** @return the number of runs written to disk, 0 if the tuples fit in memory */
+    public int getRuns() {
+        return spilled;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (!presorted && !loaded)
+            load();
+        start(0);
+    }
+
+    /**
+     * Read from the from'th tuple on, counting from 0.  This takes no reading
+     * if the tuples fit in memory, and reading fewer than
+     * SpillFile.SEEK_EVERY tuples if they were spilled by a seekable sort;
+     * otherwise the tuples before the from'th are read and dropped.
+     */
+    public void seek(int from) throws DbException, TransactionAbortedException {
+        close();
+        if (presorted)
+            child.rewind();
+        start(from);
+    }
+
+    /** Start reading from the from'th tuple; the sort must be closed. */
+    private void start(int from) throws DbException, TransactionAbortedException {
+        if (memory != null) {
+            memoryIt = memory.listIterator(Math.min(from, memory.size()));
+            return;
+        }
+        if (!presorted) {
+            readers = new DbFileIterator[runs.size()];
+            heads = new PriorityQueue<Head>(Math.max(1, runs.size()), new Comparator<Head>() {
+                public int compare(Head h1, Head h2) {
+                    int c = order.compare(h1.t, h2.t);
+                    return c != 0 ? c : h1.run - h2.run;
+                }
+            });
+            boolean single = runs.size() == 1;
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = single ? runs.get(i).iterator(from) : runs.get(i).iterator();
+                readers[i].open();
+                if (readers[i].hasNext())
+                    heads.add(new Head(readers[i].next(), i));
+            }
+            if (single)
+                return;
+        }
+        for (int i = 0; i < from && readNext() != null; i++)
+            ;
+    }
+
+    /** Read the child, sorting it in memory or into runs on disk. */
+    private void load() throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> run = new ArrayList<Tuple>();
+        while (child.hasNext()) {
+            run.add(child.next());
+            if (run.size() == memoryTuples) {
+                spill(run);
+                run.clear();
+            }
+        }
+        if (runs.isEmpty()) {
+            Collections.sort(run, order);
+            memory = run;
+        } else if (!run.isEmpty()) {
+            spill(run);
+        }
+        loaded = true;
+        if (seekable && runs.size() > 1)
+            mergeRuns();
+    }
+
+    private void spill(ArrayList<Tuple> run) throws DbException {
+        Collections.sort(run, order);
+        SpillFile f = new SpillFile(child.getTupleDesc());
+        runs.add(f);
+        spilled++;
+        for (Tuple t : run)
+            f.add(t);
+    }
+
+    /** Merge the runs into one, which replaces them. */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        SpillFile merged = new SpillFile(child.getTupleDesc());
+        start(0);
+        Tuple t;
+        while ((t = readNext()) != null)
+            merged.add(t);
+        close();
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        runs.add(merged);
+    }
+
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        if (presorted)
+            return child.hasNext() ? child.next() : null;
+        if (memoryIt != null)
+            return memoryIt.hasNext() ? memoryIt.next() : null;
+        if (heads == null || heads.isEmpty())
+            return null;
+        Head h = heads.poll();
+        DbFileIterator r = readers[h.run];
+        if (r.hasNext())
+            heads.add(new Head(r.next(), h.run));
+        return h.t;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        seek(0);
+    }
+
+    public void close() {
+        super.close();
+        memoryIt = null;
+        heads = null;
+        if (readers != null) {
+            for (DbFileIterator r : readers)
+                r.close();
+            readers = null;
+        }
+    }
+
+    /** Close the sort and delete its runs; it cannot be used afterwards. */
+    public void delete() {
+        close();
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        memory = null;
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+
+/**
+ * A free-space map for a HeapFile: one bit per page, set if the page has
+ * an empty slot.  HeapFile.insertTuple asks it for a page with room instead
+ * of reading every page of the table.
+ * <p>
+ * The map is kept in a side file next to the table, named after it with
+ * ".fsm" appended: an int giving the number of pages it covers, then one
+ * bit per page, byte HEADER_SIZE + i / 8 holding the bit of page i.  It is
+ * only a hint and is not logged: an insert still checks that the page it
+ * picked has room, and clears the bit if not.  A page whose changes are
+ * rolled back may have room again, so the BufferPool sets its bit when it
+ * discards the page (see mayHaveRoom).
+ * <p>
+ * Pages the side file does not cover, for instance because it does not
+ * exist yet, are looked up in the table the first time the map is used.
+ * A side file that covers more pages than the table has was left by an
+ * earlier table at the same path, and is rebuilt from the table; tools
+ * that write a table from scratch delete its side file (see drop).
+ */
+public class FreeSpaceMap {
+
+    /** Bytes before the bits in the side file. */
+    static final int HEADER_SIZE = 4;
+
+    private final HeapFile table;
+    private final File mapFile;
+    private BitSet hasRoom = null; // loaded on first use
+    private int covered = 0;       // pages whose bit is known
+    private int hint = 0;          // where the next search starts
+
+    public FreeSpaceMap(HeapFile table) {
+        this.table = table;
+        this.mapFile = new File(table.getFile().getPath() + ".fsm");
+    }
+
+    /** @return the side file the map is kept in */
+    public File getFile() {
+        return mapFile;
+    }
+
+    /**
+     * Delete the side file of the table in file f, which is about to be
+     * written from scratch.
+     */
+    public static void drop(File f) {
+        new File(f.getPath() + ".fsm").delete();
+    }
+
+    /**
+     * Set the bit of page pid if it is a page of a heap file: its changes
+     * were rolled back, so it may have room again.
+     */
+    static void mayHaveRoom(PageId pid) throws IOException {
+        if (!(pid instanceof HeapPageId))
+            return;
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        if (file instanceof HeapFile)
+            ((HeapFile)file).getFreeSpaceMap().setHasRoom(pid.pageNumber(), true);
+    }
+
+    /**
+     * @return a page that had an empty slot when it was last recorded, or -1
+     *   if every page was full
+     */
+    public synchronized int findPage() throws IOException {
+        load();
+        int pgNo = hasRoom.nextSetBit(hint);
+        if (pgNo < 0 || pgNo >= covered)
+            pgNo = hasRoom.nextSetBit(0);
+        if (pgNo < 0 || pgNo >= covered)
+            return -1;
+        hint = pgNo;
+        return pgNo;
+    }
+
+    /** Record whether page pgNo has an empty slot. */
+    public synchronized void setHasRoom(int pgNo, boolean room) throws IOException {
+        load();
+        boolean grown = pgNo >= covered;
+        covered = Math.max(covered, pgNo + 1);
+        if (hasRoom.get(pgNo) != room) {
+            hasRoom.set(pgNo, room);
+            if (room)
+                hint = Math.min(hint, pgNo);
+            writeByte(pgNo / 8);
+        }
+        if (grown)
+            writeHeader();
+    }
+
+    // read the side file, and fill in the pages it does not cover from the table
+    private void load() throws IOException {
+        if (hasRoom != null)
+            return;
+        hasRoom = new BitSet();
+        int numPages = table.numPages();
+        if (mapFile.length() >= HEADER_SIZE) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mapFile)));
+            try {
+                int pages = in.readInt();
+                // a map of more pages than the table has is not this table's
+                if (pages >= 0 && pages <= numPages) {
+                    byte[] bytes = new byte[(int)Math.min(mapFile.length() - HEADER_SIZE,
+                            (pages + 7) / 8)];
+                    in.readFully(bytes);
+                    covered = Math.min(bytes.length * 8, pages);
+                    for (int i = 0; i < covered; i++) {
+                        if ((bytes[i / 8] & (1 << (i % 8))) != 0)
+                            hasRoom.set(i);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (covered < numPages) {
+            for (int pgNo = covered; pgNo < numPages; pgNo++) {
+                TuplePage page = (TuplePage)table.readPage(new HeapPageId(table.getId(), pgNo));
+                hasRoom.set(pgNo, page.getNumEmptySlots() > 0);
+            }
+            covered = numPages;
+            write(0, (numPages + 7) / 8);
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, covered).array(), 0);
+    }
+
+    private void writeByte(int i) throws IOException {
+        byte b = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            if (hasRoom.get(i * 8 + bit))
+                b |= 1 << bit;
+        }
+        write(new byte[] { b }, HEADER_SIZE + i);
+    }
+
+    // write bytes from up to to of the map to the side file
+    private void write(int from, int to) throws IOException {
+        // BitSet.toByteArray puts bit i in byte i / 8, as the bits of the side file are
+        byte[] bytes = Arrays.copyOfRange(hasRoom.toByteArray(), from, to);
+        write(bytes, HEADER_SIZE + from);
+    }
+
+    // write bytes at pos of the side file, which is only open meanwhile;
+    // the bits change once per page filled or emptied, not once per insert
+    private void write(byte[] bytes, long pos) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mapFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining())
+                channel.write(buf, pos + buf.position());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -4,17 +4,53 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join for equality predicates: it builds a
+ * hash table of the left (outer) relation and probes it with each tuple of
+ * the right.  The hash table may take memoryPages pages' worth of tuples.
+ * A left relation larger than that is split into FANOUT partitions on a
+ * hash of the join field, and partitions are written to SpillFiles, the
+ * largest first, until the rest fit; right tuples whose partition was
+ * spilled are spilled to a partition of their own.  Once the right
+ * relation is used up, each pair of spilled partitions is joined the same
+ * way, partitioning again on other hash bits if the left one still does not
+ * fit.  A partition that has been split MAX_DEPTH times, which happens when
+ * many tuples share a value, is joined a memory full of left tuples at a
+ * time instead.  Each pass drops its hash table before the passes over its
+ * partitions start, so the join never holds more than one table; when the
+ * first pass spilled, rewinding builds its table again from the left
+ * relation.
+ * <p>
+ * Joins on INT_TYPE fields keep their hash tables in IntTupleTables, which
+ * hold the keys unboxed, and look up and return matches without making
+ * any objects but the tuples they return.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The number of partitions a relation too large for memory is split into. */
+    public static final int FANOUT = 8;
+
+    /** The number of times a partition is split before it is joined in pieces. */
+    public static final int MAX_DEPTH = 3;
+
     private JoinPredicate p;
     private DbIterator child1,child2;
+    private final int memoryPages;
+
+    private transient Pass first = null;     // the pass over the children
+    private transient Pass pass = null;      // the pass returning tuples now
+    private transient LinkedList<Pass> pending = null; // pairs of partitions to join
+    private transient ArrayList<SpillFile> spills = null;
+    private transient int spilled = 0;
+    private transient TupleDesc td = null;         // of the tuples returned
+    private transient boolean intKeys = false;     // join on INT_TYPE fields
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -23,10 +59,31 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, JoinOptimizer.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor for a join whose hash table may take memoryPages pages'
+     * worth of tuples before it spills partitions to disk.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryPages
+     *            The pages of left tuples to hold in memory, at least 1
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int memoryPages) {
         // some code goes here
+        if (memoryPages < 1)
+            throw new IllegalArgumentException("a hash join needs at least 1 page of memory");
         this.p=p;
         this.child1=child1;
         this.child2=child2;
+        this.memoryPages = memoryPages;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -38,7 +95,7 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return TupleDesc.merge(child1.getTupleDesc(),child2.getTupleDesc());
     }
-    
+
     public String getJoinField1Name()
     {
         // some code goes here
@@ -50,14 +107,35 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return child2.getTupleDesc().getFieldName(p.getField2());
     }
-    
+
+    /** @return the pages of left tuples the hash table may hold */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * @return the number of partitions of the left relation written to disk
+     *   since the join was opened
+     */
+    public int getSpilledPartitions() {
+        return spilled;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         super.open();
         child1.open();
         child2.open();
-        build();
+        pending = new LinkedList<Pass>();
+        spills = new ArrayList<SpillFile>();
+        spilled = 0;
+        td = getTupleDesc();
+        intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
+        first = new Pass(0, childIterator(child1), childIterator(child2), null, null);
+        first.start();
+        pass = first;
     }
 
     public void close() {
@@ -65,28 +143,298 @@ public class HashEquiJoin extends Operator {
         super.close();
         child1.close();
         child2.close();
-        map.clear();
+        if (pass != null)
+            pass.close();
+        if (spills != null) {
+            for (SpillFile f : spills)
+                f.delete();
+        }
+        spills = null;
+        pending = null;
+        first = null;
+        pass = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        // the hash table and spilled partitions of child1 stay; everything
+        // made from child2 is made again
+        if (pass != null && pass != first)
+            pass.close();
+        for (Iterator<SpillFile> it = spills.iterator(); it.hasNext(); ) {
+            SpillFile f = it.next();
+            if (!first.isBuildPartition(f)) {
+                f.delete();
+                it.remove();
+            }
+        }
+        pending.clear();
+        if (first.isReleased())
+            first.rebuild();
+        first.restartProbe();
+        pass = first;
+    }
+
+    /** @return a new spill file for tuples of td, deleted by close */
+    private SpillFile spill(TupleDesc td) throws DbException {
+        SpillFile f = new SpillFile(td);
+        spills.add(f);
+        return f;
     }
 
-    transient Iterator<Tuple> listIt = null;
-    transient Tuple t2 = null;
-    private Map<Field, List<Tuple>> map = new HashMap<>();
+    /** Delete f, which the join is done with. */
+    private void drop(SpillFile f) {
+        f.delete();
+        spills.remove(f);
+    }
 
-    private void build() throws TransactionAbortedException, DbException {
-        map.clear();
-        while (child1.hasNext()) {
-            Tuple tuple = child1.next();
-            List<Tuple> bucket = map.get(tuple.getField(p.getField1()));
-            if (bucket == null) {
-                bucket = new ArrayList<>();
-                bucket.add(tuple);
-                map.put(tuple.getField(p.getField1()), bucket);
+    /** @return the DbIterator it as a DbFileIterator; it must be open */
+    private static DbFileIterator childIterator(final DbIterator it) {
+        return new AbstractDbFileIterator() {
+            public void open() {
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                it.rewind();
+            }
+        };
+    }
+
+    /** @return the partition of key when splitting a relation for the level'th time */
+    private static int partition(Field key, int level) {
+        int h = key.hashCode() ^ (level * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % FANOUT;
+    }
+
+    /**
+     * Joining one pair of inputs: the children, or a pair of spilled
+     * partitions at level 1 or below.
+     */
+    private class Pass {
+        final int level;
+        final DbFileIterator build, probe;
+        final SpillFile buildIn, probeIn; // the partitions read, or null for the children
+        final boolean chunked;            // joined a memory full at a time
+        final long memoryTuples;
+        HashMap<Field, List<Tuple>> map = null; // unless intKeys; null once released
+        IntTupleTable table = null;             // if intKeys; null once released
+        final SpillFile[] buildParts = new SpillFile[FANOUT];
+        SpillFile[] probeParts = new SpillFile[FANOUT];
+        Iterator<Tuple> listIt = null;           // the matches of t2 left, unless intKeys
+        int row = -1;                            // the match of t2 next, if intKeys
+        Tuple t2 = null;
+
+        Pass(int level, DbFileIterator build, DbFileIterator probe,
+                SpillFile buildIn, SpillFile probeIn) {
+            this.level = level;
+            this.build = build;
+            this.probe = probe;
+            this.buildIn = buildIn;
+            this.probeIn = probeIn;
+            this.chunked = level >= MAX_DEPTH;
+            this.memoryTuples = Math.max(1, (long) memoryPages * BufferPool.getPageSize()
+                    / child1.getTupleDesc().getSize());
+        }
+
+        /** Empty the hash table, making it if it was released. */
+        void clear() {
+            if (intKeys) {
+                if (table == null)
+                    table = new IntTupleTable();
+                else
+                    table.clear();
             } else {
-                bucket.add(tuple);
+                if (map == null)
+                    map = new HashMap<Field, List<Tuple>>();
+                else
+                    map.clear();
+            }
+        }
+
+        /** Drop the hash table, and the memory it takes. */
+        void release() {
+            map = null;
+            table = null;
+        }
+
+        boolean isReleased() {
+            return map == null && table == null;
+        }
+
+        boolean hasSpilled() {
+            for (SpillFile f : buildParts) {
+                if (f != null)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Build the hash table again from the start of the build side, from
+         * the partitions that were not spilled; the spilled ones are kept.
+         */
+        void rebuild() throws DbException, TransactionAbortedException {
+            build.rewind();
+            clear();
+            while (build.hasNext()) {
+                Tuple t = build.next();
+                if (buildParts[partition(t.getField(p.getField1()), level)] == null)
+                    add(t);
+            }
+        }
+
+        /** Open the inputs of the pass and build its hash table. */
+        void start() throws DbException, TransactionAbortedException {
+            build.open();
+            probe.open();
+            build();
+        }
+
+        void close() {
+            build.close();
+            probe.close();
+        }
+
+        boolean isBuildPartition(SpillFile f) {
+            return Arrays.asList(buildParts).contains(f);
+        }
+
+        /**
+         * Read the build side into the hash table, spilling partitions until
+         * the rest fit; a chunked pass reads only as much as fits.
+         */
+        void build() throws DbException, TransactionAbortedException {
+            clear();
+            if (chunked) {
+                for (long n = 0; n < memoryTuples && build.hasNext(); n++)
+                    add(build.next());
+                return;
+            }
+            List<List<Tuple>> parts = new ArrayList<List<Tuple>>(FANOUT);
+            for (int i = 0; i < FANOUT; i++)
+                parts.add(new ArrayList<Tuple>());
+            long inMemory = 0;
+            while (build.hasNext()) {
+                Tuple t = build.next();
+                int i = partition(t.getField(p.getField1()), level);
+                if (buildParts[i] != null) {
+                    buildParts[i].add(t);
+                    continue;
+                }
+                parts.get(i).add(t);
+                if (++inMemory <= memoryTuples)
+                    continue;
+                int largest = i;
+                for (int j = 0; j < FANOUT; j++) {
+                    if (buildParts[j] == null && parts.get(j).size() > parts.get(largest).size())
+                        largest = j;
+                }
+                buildParts[largest] = spill(child1.getTupleDesc());
+                for (Tuple s : parts.get(largest))
+                    buildParts[largest].add(s);
+                inMemory -= parts.get(largest).size();
+                parts.set(largest, new ArrayList<Tuple>());
+                spilled++;
+            }
+            for (List<Tuple> part : parts) {
+                for (Tuple t : part)
+                    add(t);
+            }
+        }
+
+        private void add(Tuple tuple) {
+            Field key = tuple.getField(p.getField1());
+            if (intKeys) {
+                table.add(((IntField) key).getValue(), tuple);
+                return;
+            }
+            List<Tuple> bucket = map.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Tuple>();
+                map.put(key, bucket);
+            }
+            bucket.add(tuple);
+        }
+
+        /** Probe the hash table with the right relation from its start. */
+        void restartProbe() throws DbException, TransactionAbortedException {
+            probe.rewind();
+            probeParts = new SpillFile[FANOUT];
+            listIt = null;
+            row = -1;
+            t2 = null;
+        }
+
+        /** @return the next tuple of the pass, or null once it is done */
+        Tuple next() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (row >= 0) {
+                    Tuple t1 = table.get(row);
+                    row = table.next(row);
+                    return new Tuple(td, t1, t2);
+                }
+                if (listIt != null && listIt.hasNext())
+                    return new Tuple(td, listIt.next(), t2);
+                listIt = null;
+                if (!probe.hasNext()) {
+                    if (chunked && build.hasNext()) {
+                        build();
+                        probe.rewind();
+                        continue;
+                    }
+                    return null;
+                }
+                t2 = probe.next();
+                Field key = t2.getField(p.getField2());
+                int i = chunked ? -1 : partition(key, level);
+                if (i >= 0 && buildParts[i] != null) {
+                    if (probeParts[i] == null)
+                        probeParts[i] = spill(child2.getTupleDesc());
+                    probeParts[i].add(t2);
+                    continue;
+                }
+                if (intKeys) {
+                    row = table.first(((IntField) key).getValue());
+                } else {
+                    List<Tuple> bucket = map.get(key);
+                    if (bucket != null)
+                        listIt = bucket.iterator();
+                }
+            }
+        }
+
+        /**
+         * Close the pass, delete what it read unless the join reads it
+         * again on rewind, and queue the joins of its spilled partitions.
+         */
+        void finish() throws DbException, TransactionAbortedException {
+            close();
+            // the first pass keeps its table for rewind unless the passes
+            // over its partitions are to build tables of their own
+            if (level > 0 || hasSpilled())
+                release();
+            if (probeIn != null)
+                drop(probeIn);
+            if (buildIn != null && level > 1)
+                drop(buildIn);
+            for (int i = FANOUT - 1; i >= 0; i--) {
+                if (buildParts[i] == null)
+                    continue;
+                if (probeParts[i] == null) {
+                    // nothing joins with it
+                    if (level > 0)
+                        drop(buildParts[i]);
+                    continue;
+                }
+                pending.addFirst(new Pass(level + 1, buildParts[i].iterator(),
+                        probeParts[i].iterator(), buildParts[i], probeParts[i]));
             }
         }
     }
@@ -105,37 +453,20 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (listIt != null && listIt.hasNext()){
-            Tuple t1 = listIt.next();
-
-            // create new tuple
-            Tuple tuple = new Tuple(getTupleDesc());
-            int len1 = t1.getTupleDesc().numFields();
-            int len2 = t2.getTupleDesc().numFields();
-            // set tuple 1
-            for (int i = 0; i < len1; i++) {
-                tuple.setField(i, t1.getField(i));
-            }
-            // set tuple 2
-            for (int i = 0; i < len2; i++) {
-                tuple.setField(i + len1, t2.getField(i));
-            }
-            return tuple;
-        }
-
-        while (child2.hasNext()) {
-            t2 = child2.next();
-            List<Tuple> bucket = map.get(t2.getField(p.getField2()));
-            if (bucket == null)
-                continue;
-            listIt = bucket.iterator();
-            return fetchNext();
+        while (pass != null) {
+            Tuple t = pass.next();
+            if (t != null)
+                return t;
+            pass.finish();
+            pass = pending.pollFirst();
+            if (pass != null)
+                pass.start();
         }
         return null;
     }
@@ -152,5 +483,5 @@ public class HashEquiJoin extends Operator {
         this.child1=children[0];
         this.child2=children[1];
     }
-    
+
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -8,13 +9,17 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor.  Tables with variable-length fields are stored in
+ * SlottedHeapPages instead.
  *
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** Number of pages appendTuples writes at a time. */
+    public static final int APPEND_BATCH_PAGES = 64;
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -26,12 +31,19 @@ public class HeapFile implements DbFile {
     private int id;
     private File f;
     private TupleDesc td;
+    // kept open for the life of the table, see DbFileChannel
+    private final DbFileChannel file;
+    private final FreeSpaceMap freeSpace;
+    private volatile PageChecksums checksums = null;
+    private volatile boolean checksumsDropped = false; // since they were last on
 
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.f = f;
         this.td = td;
         this.id = f.getAbsoluteFile().hashCode();
+        this.file = new DbFileChannel(f);
+        this.freeSpace = new FreeSpaceMap(this);
 
     }
 
@@ -45,6 +57,18 @@ public class HeapFile implements DbFile {
         return this.f;
     }
 
+    /**
+     * Release the open file and the memory mappings of the table, e.g.
+     * when the Catalog lets go of it.  They are opened again if the table
+     * is used afterwards.
+     */
+    public void close() throws IOException {
+        file.close();
+        PageChecksums sums = checksums;
+        if (sums != null)
+            sums.close();
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -59,6 +83,50 @@ public class HeapFile implements DbFile {
         return this.id;
     }
 
+    /**
+     * Serve page reads from memory mappings of the file instead of reading
+     * each page into a new array.  Pages read this way are built directly
+     * on the mapped bytes.
+     *
+     * @param mapped whether the file should be memory-mapped
+     */
+    public void setMemoryMapped(boolean mapped) {
+        file.setMapped(mapped);
+    }
+
+    /** @return true if page reads are served from memory mappings */
+    public boolean isMemoryMapped() {
+        return file.isMapped();
+    }
+
+    /**
+     * Check every page read against a checksum stamped when it was written,
+     * repairing damaged pages from the log.  A page written while they
+     * are off loses its checksum, and is trusted again when they are
+     * turned back on.
+     *
+     * @param on whether pages should be checksummed
+     * @see PageChecksums
+     */
+    public void setChecksums(boolean on) {
+        checksumsDropped = false;
+        checksums = on ? new PageChecksums(f) : null;
+    }
+
+    /** @return true if pages are checksummed */
+    public boolean hasChecksums() {
+        return checksums != null;
+    }
+
+    /**
+     * @return the number of pages that failed their checksum since
+     *   checksums were turned on
+     */
+    public long getCorruptPageCount() {
+        PageChecksums sums = checksums;
+        return sums == null ? 0 : sums.getCorruptions();
+    }
+
     /**
      * Returns the TupleDesc of the table stored in this DbFile.
      *
@@ -69,27 +137,38 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Build a page of this file from its bytes, without copying them: a
+     * HeapPage, or a SlottedHeapPage if the tuples vary in size.
+     */
+    TuplePage createPage(HeapPageId pid, ByteBuffer data) throws IOException {
+        if (td.isFixedSize())
+            return new HeapPage(pid, data);
+        return new SlottedHeapPage(pid, td, data);
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         try {
-            RandomAccessFile file = new RandomAccessFile(f,"r");
-            int offset = BufferPool.getPageSize() * pid.pageNumber();
-            byte[] data = new byte[BufferPool.getPageSize()];
-            if (offset + BufferPool.getPageSize() > file.length()) {
-                System.err.println("page offset exceeds max size");
-                System.exit(1);
+            long offset = (long)BufferPool.getPageSize() * pid.pageNumber();
+            ByteBuffer data = file.slice(offset, BufferPool.getPageSize());
+            if (data == null) {
+                byte[] bytes = new byte[BufferPool.getPageSize()];
+                if (!file.read(bytes, offset))
+                    throw new IllegalArgumentException("Read past end of table");
+                data = ByteBuffer.wrap(bytes);
+            }
+            PageChecksums sums = checksums;
+            if (sums != null) {
+                byte[] repaired = sums.check(pid, data);
+                if (repaired != null) {
+                    file.write(repaired, offset);
+                    data = ByteBuffer.wrap(repaired);
+                }
             }
-            file.seek(offset);
-            file.readFully(data);
-            file.close();
-            return new HeapPage((HeapPageId)pid, data);
-        } catch (FileNotFoundException e) {
-            System.err.println("File not found");
-            e.printStackTrace();
-            throw new IllegalArgumentException();
-        }catch (IOException e) {
-            System.err.println("IO Exception");
-            throw new IllegalArgumentException();
+            return createPage((HeapPageId)pid, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -97,16 +176,29 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        try {
-            RandomAccessFile rf = new RandomAccessFile(this.f,"rw");
-            rf.seek((long)page.getId().pageNumber()*BufferPool.getPageSize());
-            rf.write(page.getPageData(), 0, BufferPool.getPageSize());
-            rf.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        int pgNo = page.getId().pageNumber();
+        byte[] data = page.getPageData();
+        PageChecksums sums = prepareChecksums(pgNo, new byte[][] { data });
+        file.write(data, (long)pgNo * BufferPool.getPageSize());
+        if (sums != null)
+            sums.written(pgNo);
+    }
+
+    // get the checksums of pages, about to be written from page first on,
+    // on disk before the pages are; see PageChecksums
+    private PageChecksums prepareChecksums(int first, byte[][] pages) throws IOException {
+        PageChecksums sums = checksums;
+        if (sums == null) {
+            if (!checksumsDropped) {
+                PageChecksums.drop(f);
+                checksumsDropped = true;
+            }
+            return null;
         }
+        for (int i = 0; i < pages.length; i++)
+            sums.prepare(first + i, pages[i], file, (long)(first + i) * BufferPool.getPageSize());
+        sums.sync();
+        return sums;
     }
 
     /**
@@ -114,43 +206,134 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) Math.ceil(this.f.length()/(long)BufferPool.getPageSize());
+        try {
+            return (int) (file.length() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return the map of the pages of this file that have empty slots */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        HeapPage page = null;
-        int pageNo = 0;
-        while(pageNo < this.numPages()) {
-            page = (HeapPage) Database.getBufferPool().getPage(tid,
-                    new HeapPageId(this.getId(), pageNo), Permissions.READ_WRITE);
+        BufferPool bp = Database.getBufferPool();
+        TuplePage page = null;
+        int pageNo;
+        while ((pageNo = freeSpace.findPage()) >= 0) {
+            HeapPageId pid = new HeapPageId(this.getId(), pageNo);
+            boolean locked = bp.holdsLock(tid, pid);
+            page = (TuplePage) bp.getPage(tid, pid, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() > 0) break;
-            Database.getBufferPool().releasePage(tid, page.getId());
-            pageNo++;
+            // the map was behind; keep any lock taken for an earlier change
+            freeSpace.setHasRoom(pageNo, false);
+            if (locked)
+                bp.unpinPage(tid, pid);
+            else
+                bp.releasePage(tid, pid);
+            page = null;
         }
 
-
-        page = new HeapPage(new HeapPageId(this.getId(),pageNo), HeapPage.createEmptyPageData());
-        this.writePage(page);
-        page = (HeapPage)Database.getBufferPool().getPage(tid,
-                new HeapPageId(this.getId(),pageNo),Permissions.READ_WRITE);
+        if (page == null) {
+            // no page has room, so add one to the end of the file
+            synchronized (this) {
+                pageNo = numPages();
+                writePage(createPage(new HeapPageId(this.getId(), pageNo),
+                        ByteBuffer.wrap(HeapPage.createEmptyPageData())));
+            }
+            freeSpace.setHasRoom(pageNo, true);
+            page = (TuplePage) bp.getPage(tid, new HeapPageId(this.getId(), pageNo),
+                    Permissions.READ_WRITE);
+        }
 
         page.insertTuple(t);
+        if (page.getNumEmptySlots() == 0)
+            freeSpace.setHasRoom(pageNo, false);
         ArrayList<Page> res = new ArrayList<Page>();
         res.add(page);
         return res;
         // not necessary for lab1
     }
 
+    /**
+     * Add many tuples to the end of the file on behalf of transaction tid,
+     * bypassing the buffer pool.  The tuples are packed into new pages in
+     * memory, and every APPEND_BATCH_PAGES pages are written with a single
+     * sequential write.  Each new page is locked for tid and logged as an
+     * update of an empty page before it is written, so that aborting tid
+     * or recovering from a crash empties it again.  The free space map
+     * records the new pages as full, or not, as soon as they are written;
+     * rolling them back discards them from the pool, which marks them as
+     * having room again (see FreeSpaceMap).
+     * <p>
+     * Pages that already have room are left alone; use insertTuple to fill
+     * them.  The last new page may be left partly empty.
+     *
+     * @return the number of tuples added
+     * @see BufferPool#appendTuples
+     */
+    public int appendTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        int count = 0;
+        while (tuples.hasNext()) {
+            // the page numbers are only ours once the pages are written
+            synchronized (this) {
+                int first = numPages();
+                ArrayList<TuplePage> pages = new ArrayList<TuplePage>();
+                while (tuples.hasNext() && pages.size() < APPEND_BATCH_PAGES) {
+                    TuplePage page = createPage(new HeapPageId(getId(), first + pages.size()),
+                            ByteBuffer.wrap(HeapPage.createEmptyPageData()));
+                    while (tuples.hasNext() && page.getNumEmptySlots() > 0) {
+                        page.insertTuple(tuples.next());
+                        count++;
+                    }
+                    pages.add(page);
+                }
+                Database.getBufferPool().logNewPages(tid, pages);
+
+                byte[][] images = new byte[pages.size()][];
+                byte[] run = new byte[pages.size() * pageSize];
+                for (int i = 0; i < pages.size(); i++) {
+                    images[i] = pages.get(i).getPageData();
+                    System.arraycopy(images[i], 0, run, i * pageSize, pageSize);
+                }
+                PageChecksums sums = prepareChecksums(first, images);
+                BufferPool bp = Database.getBufferPool();
+                bp.beginChange();
+                try {
+                    file.write(run, (long)first * pageSize);
+                } finally {
+                    bp.endChange();
+                }
+                for (int i = 0; sums != null && i < pages.size(); i++)
+                    sums.written(first + i);
+                for (TuplePage page : pages) {
+                    Database.getLogFile().pageWritten(page.getId());
+                    freeSpace.setHasRoom(page.getId().pageNumber(), page.getNumEmptySlots() > 0);
+                }
+            }
+        }
+        return count;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+        TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid,
                 t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        try {
+            freeSpace.setHasRoom(page.getId().pageNumber(), true);
+        } catch (IOException e) {
+            throw new DbException("unable to update the free space map: " + e);
+        }
         ArrayList<Page> res = new ArrayList<Page>();
         res.add(page);
         return res;
@@ -160,37 +343,68 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that reads the pages
+     * it does not find in the buffer pool into ring, so that the pool keeps
+     * the pages other queries use.
+     *
+     * @param ring the ring to read pages into, or null to use the pool
+     * @see ScanRing
+     */
+    public DbFileIterator iterator(TransactionId tid, ScanRing ring) {
+        return new HeapFileIterator(this, tid, ring);
     }
 
     private class HeapFileIterator extends AbstractDbFileIterator{
         Iterator<Tuple> tupleIt;
         int curPageNo;
+        HeapPageId curPageId;
         TransactionId tid;
         HeapFile hf;
+        ScanRing ring;
+        ReadAhead readAhead;
 
-        public HeapFileIterator(HeapFile hf, TransactionId tid) {
+        public HeapFileIterator(HeapFile hf, TransactionId tid, ScanRing ring) {
             this.hf = hf;
             this.tid = tid;
+            this.ring = ring;
         }
 
         public void open() throws DbException, TransactionAbortedException {
             curPageNo = -1;
+            readAhead = new ReadAhead(ring);
         }
 
         @Override
         protected Tuple readNext() throws TransactionAbortedException, DbException{
             if (tupleIt != null && !tupleIt.hasNext()) tupleIt = null;
-            while(tupleIt == null && curPageNo < this.hf.numPages() - 1) {
-                HeapPageId  curPageId = new HeapPageId(this.hf.getId(), ++curPageNo);
-                HeapPage curPage = (HeapPage) Database.getBufferPool().getPage(tid,curPageId,Permissions.READ_ONLY);
+            int numPages = this.hf.numPages();
+            while(tupleIt == null && curPageNo < numPages - 1) {
+                // done with the previous page, let the buffer pool evict it
+                unpinCurrentPage();
+                curPageId = new HeapPageId(this.hf.getId(), ++curPageNo);
+                readAhead.heapPage(curPageId, numPages);
+                TuplePage curPage = (TuplePage) Database.getBufferPool().getPage(tid,curPageId,Permissions.READ_ONLY,ring);
                 tupleIt = curPage.iterator();
                 if (!tupleIt.hasNext()) tupleIt = null;
             }
-            if (tupleIt == null) return null;
+            if (tupleIt == null) {
+                unpinCurrentPage();
+                return null;
+            }
             return tupleIt.next();
         }
 
+        private void unpinCurrentPage() {
+            if (curPageId != null) {
+                Database.getBufferPool().unpinPage(tid, curPageId);
+                curPageId = null;
+            }
+        }
+
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             close();
@@ -200,6 +414,11 @@ public class HeapFile implements DbFile {
 
         public void close() {
             super.close();
+            unpinCurrentPage();
+            if (readAhead != null)
+                readAhead.close();
+            if (ring != null)
+                Database.getBufferPool().releaseScanRing(ring);
             tupleIt = null;
             curPageNo = Integer.MAX_VALUE;
         }
@@ -1,7 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -76,9 +79,12 @@ public class HeapFileEncoder {
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
-    * HeapFile.
+    * HeapFile.  If typeAr has a VARCHAR_TYPE field, the pages are
+    * SlottedHeapPages instead, and npagebytes must be
+    * BufferPool.getPageSize().
     *
     * @see HeapPage
+    * @see SlottedHeapPage
     * @see HeapFile
     * @param inFile The input file to read data from
     * @param outFile The output file to write data to
@@ -91,6 +97,12 @@ public class HeapFileEncoder {
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
 
+      TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+      if (!td.isFixedSize()) {
+          convertSlotted(inFile, outFile, npagebytes, td, fieldSeparator);
+          return;
+      }
+
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
@@ -106,6 +118,8 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    FreeSpaceMap.drop(outFile);
+    PageChecksums.drop(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -223,4 +237,62 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  // write the rows of inFile as SlottedHeapPages, as many to a page as fit
+  private static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 TupleDesc td, char fieldSeparator) throws IOException {
+      if (npagebytes != BufferPool.getPageSize())
+          throw new IllegalArgumentException("slotted pages must be " + BufferPool.getPageSize()
+                  + " bytes, not " + npagebytes);
+      BufferedReader br = new BufferedReader(new FileReader(inFile));
+      FileOutputStream os = new FileOutputStream(outFile);
+      FreeSpaceMap.drop(outFile);
+      PageChecksums.drop(outFile);
+      HeapPageId pid = new HeapPageId(0, 0);
+      SlottedHeapPage page = new SlottedHeapPage(pid, td, ByteBuffer.wrap(HeapPage.createEmptyPageData()));
+      int recordcount = 0;
+      int npages = 0;
+      String separator = Pattern.quote(String.valueOf(fieldSeparator));
+
+      String line;
+      rows:
+      while ((line = br.readLine()) != null) {
+          if (line.isEmpty())
+              continue;
+          String[] values = line.split(separator, -1);
+          Tuple t = new Tuple(td);
+          for (int i = 0; i < td.numFields(); i++) {
+              String s = i < values.length ? values[i].trim() : "";
+              if (td.getFieldType(i) == Type.INT_TYPE) {
+                  try {
+                      t.setField(i, new IntField(Integer.parseInt(s)));
+                  } catch (NumberFormatException e) {
+                      System.out.println ("BAD LINE : " + line);
+                      continue rows;
+                  }
+              } else {
+                  t.setField(i, new StringField(s, Type.STRING_LEN));
+              }
+          }
+
+          if (page.getNumEmptySlots() == 0) {
+              os.write(page.getPageData());
+              npages++;
+              page = new SlottedHeapPage(pid, td, ByteBuffer.wrap(HeapPage.createEmptyPageData()));
+              recordcount = 0;
+          }
+          try {
+              page.insertTuple(t);
+          } catch (DbException e) {
+              throw new RuntimeException(e); // cannot happen, the page has room
+          }
+          recordcount++;
+      }
+
+      // as above, an empty file still gets one empty page
+      if (recordcount > 0 || npages == 0)
+          os.write(page.getPageData());
+      br.close();
+      os.close();
+  }
 }
@@ -2,25 +2,47 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
- * Each instance of HeapPage stores data for one page of HeapFiles and 
+ * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its bytes in the on-disk format: tuples are decoded only
+ * when they are iterated over, and single fields can be decoded by slot and
+ * column with getField.  Inserts and deletes write the bytes in place.  The
+ * header is also kept as a bitmap of longs with a count of empty slots, so
+ * that free and used slots are found a word at a time.
+ * <p>
+ * The bytes a page is built from are borrowed, not copied.  The first
+ * change copies them into an array of the page's own, so the bytes it was
+ * built from stay unchanged and become its before image.
  *
  * @see HeapFile
  * @see BufferPool
+ * @see SlottedHeapPage
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
+    final int tupleSize;
 
+    // the bytes of the page; read-only until owned is set
+    private ByteBuffer data;
+    private boolean owned = false;
+
+    // the header bits, slot i in bit i % 64 of used[i / 64]
+    private final long[] used;
+    private int numEmpty;
+
+    // the before image, or null if the page is unchanged since it was
+    // read or since setBeforeImage, in which case data is the before image
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -34,42 +56,56 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page uses data without copying it, so the caller must not change
+     * it afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from bytes that stay unchanged while the page is
+     * clean, such as a slice of a memory-mapped file.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.tupleSize = td.getSize();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.headerSize = getHeaderSize();
+        this.data = data;
+        this.used = new long[(numSlots + 63) / 64];
+        for (int i = 0; i < headerSize; i++)
+            used[i / 8] |= (long)(data.get(i) & 0xff) << (i % 8 * 8);
+        if (numSlots % 64 != 0)
+            used[used.length - 1] &= (1L << numSlots) - 1; // ignore the padding bits
+        int numUsed = 0;
+        for (long word : used)
+            numUsed += Long.bitCount(word);
+        this.numEmpty = numSlots - numUsed;
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
-    private int getNumTuples() {        
+    private int getNumTuples() {
         // some code goes here
+        return getNumTuples(td);
+
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with tuples
+     *   described by td
+     */
+    public static int getNumTuples(TupleDesc td) {
         int numBits= td.getSize()*8+1;//1 is for the header
         return BufferPool.getPageSize()*8/numBits;
-
     }
 
     /**
@@ -80,19 +116,22 @@ public class HeapPage implements Page {
         // some code goes here
         int tupleNum=getNumTuples();
         return tupleNum%8==0? tupleNum/8:tupleNum/8+1;
-                 
+
     }
-    
+
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                if (oldData != null)
+                    return new HeapPage(pid,oldData);
+                // unchanged, so the before image shares our bytes until
+                // one of the two pages is changed
+                owned = false;
+                return new HeapPage(pid,data);
             }
-            return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -100,11 +139,38 @@ public class HeapPage implements Page {
         }
         return null;
     }
-    
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // the current bytes become the before image; the next change
+        // copies them
+        oldData = null;
+        owned = false;
+        }
+    }
+
+    /**
+     * Make data an array of this page's own before changing it.  The bytes
+     * it borrowed become the before image if there is none yet.
+     */
+    private void own() {
+        synchronized(oldDataLock)
+        {
+        if (owned)
+            return;
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.position(0);
+        src.get(copy);
+        if (oldData == null) {
+            if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == copy.length)
+                oldData = data.array();
+            else
+                oldData = copy.clone(); // a mapped file changes when the page is written
+        }
+        data = ByteBuffer.wrap(copy);
+        owned = true;
         }
     }
 
@@ -118,39 +184,38 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Suck up the tuple in a slot from the page bytes.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
+    private Tuple readTuple(int slotId) {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        int offset = headerSize + slotId * tupleSize;
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen();
         }
-
         return t;
     }
 
+    /**
+     * Decode a single field of the tuple in a slot, without building the
+     * rest of the tuple.
+     *
+     * @param slotId the slot of the tuple
+     * @param fieldNo the index of the field in the TupleDesc
+     * @return the field, or null if the slot is empty
+     */
+    public Field getField(int slotId, int fieldNo) {
+        if (!isSlotUsed(slotId))
+            return null;
+        int offset = headerSize + slotId * tupleSize;
+        for (int j=0; j<fieldNo; j++)
+            offset += td.getFieldType(j).getLen();
+        return td.getFieldType(fieldNo).parse(data, offset);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -163,64 +228,11 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.position(0);
+        src.get(copy);
+        return copy;
     }
 
     /**
@@ -252,9 +264,13 @@ public class HeapPage implements Page {
         if (!(pid.equals(this.pid))) throw new DbException("No such tuple");
         else if (num == -1) throw new DbException("Tuple has already been deleted");
         else if (!(this.isSlotUsed(num))) throw new DbException("slot is empty");
+        own();
         t.setRecordId(new RecordId(pid, -1));
-        this.tuples[num] = null;
         this.markSlotUsed(num, false);
+        // empty slots are all zeroes on disk
+        int offset = headerSize + num * tupleSize;
+        for (int i = 0; i < tupleSize; i++)
+            data.put(offset + i, (byte)0);
     }
 
     /**
@@ -269,9 +285,26 @@ public class HeapPage implements Page {
         // not necessary for lab1
         if (this.getNumEmptySlots() == 0) throw new DbException("Page is full");
         else if (!(this.td.equals(t.getTupleDesc()))) throw new DbException("TupleDesc is dismatch");
-        int num = 0;
-        while (this.isSlotUsed(num)) num++;
-        this.tuples[num] = t;
+        int num = firstEmptySlot();
+        own();
+        final ByteBuffer out = data.duplicate();
+        out.position(headerSize + num * tupleSize);
+        DataOutputStream dos = new DataOutputStream(new OutputStream() {
+            public void write(int b) {
+                out.put((byte)b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                out.put(b, off, len);
+            }
+        });
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.getField(j).serialize(dos);
+        } catch (IOException e) {
+            // cannot happen, the stream writes to memory
+            throw new RuntimeException(e);
+        }
         this.markSlotUsed(num, true);
         t.setRecordId(new RecordId(this.pid, num));
     }
@@ -305,11 +338,17 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int num=0;
-        for(int i=0;i<this.numSlots;i++){
-            if(!isSlotUsed(i)) num++;
+        return numEmpty;
+    }
+
+    // the lowest empty slot; there must be one
+    private int firstEmptySlot() {
+        for (int w = 0; w < used.length; w++) {
+            long free = ~used[w];
+            if (free != 0)
+                return w * 64 + Long.numberOfTrailingZeros(free);
         }
-        return num;
+        throw new IllegalStateException("no empty slot");
     }
 
     /**
@@ -317,10 +356,8 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        int byteNum=i/8;
-        int bitNum=i%8;
-        if(byteNum<0||byteNum>=header.length) return false;
-        return (header[byteNum]&(1<<bitNum))>0;
+        if(i<0||i>=numSlots) return false;
+        return (used[i/64]&(1L<<i))!=0;
     }
 
     /**
@@ -329,25 +366,64 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        if (value) this.header[i/8] |= (1 << (i%8));
-        else this.header[i/8] &= ~(1 << (i % 8));
+        long bit = 1L << i;
+        if (((used[i/64] & bit) != 0) == value) return;
+        used[i/64] ^= bit;
+        numEmpty += value ? -1 : 1;
+        byte b = data.get(i/8);
+        if (value) b |= (1 << (i%8));
+        else b &= ~(1 << (i % 8));
+        data.put(i/8, b);
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * Tuples are decoded as the iterator reaches them.  It returns the
+     * tuples in the slots used when it was created that are still there,
+     * walking the set bits of a copy of the header bitmap.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> used = new ArrayList<>(numSlots);
+        final long[] snapshot = used.clone();
+        return new Iterator<Tuple>() {
+            private int word = 0;
+            private int slot = advance();
+
+            // take the next set bit of the snapshot, skipping slots
+            // emptied since; numSlots at the end
+            private int advance() {
+                while (word < snapshot.length) {
+                    long bits = snapshot[word];
+                    if (bits == 0) {
+                        word++;
+                        continue;
+                    }
+                    snapshot[word] = bits & (bits - 1);
+                    int s = word * 64 + Long.numberOfTrailingZeros(bits);
+                    if (isSlotUsed(s))
+                        return s;
+                }
+                return numSlots;
+            }
 
-        for (int i = 0; i < numSlots; i++) {
-            if (isSlotUsed(i)) {
-                used.add(tuples[i]);
+            public boolean hasNext() {
+                return slot < numSlots;
             }
-        }
-        return used.iterator();
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(slot);
+                slot = advance();
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
-
@@ -1,5 +1,6 @@
 package simpledb;
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -70,8 +71,14 @@ public class Insert extends Operator {
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
+     * <p>
+     * Rows bound for a heap file are gathered into batches large enough to
+     * fill HeapFile.APPEND_BATCH_PAGES pages, which are added with
+     * BufferPool.appendTuples.
+     *
      * @see Database#getBufferPool
      * @see BufferPool#insertTuple
+     * @see BufferPool#appendTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -81,10 +88,29 @@ public class Insert extends Operator {
         }
         int num = 0;
         try {
-            while (child.hasNext()) {
-                Tuple tuple = child.next();
-                Database.getBufferPool().insertTuple(t, tableId, tuple);
-                num++;
+            BufferPool bp = Database.getBufferPool();
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            if (!(file instanceof HeapFile)) {
+                while (child.hasNext()) {
+                    bp.insertTuple(t, tableId, child.next());
+                    num++;
+                }
+            } else {
+                // rows come in batches that fill whole new pages; a smaller
+                // remainder goes into free space on existing pages
+                int batch = HeapPage.getNumTuples(file.getTupleDesc()) * HeapFile.APPEND_BATCH_PAGES;
+                ArrayList<Tuple> pending = new ArrayList<Tuple>();
+                while (child.hasNext()) {
+                    pending.add(child.next());
+                    if (pending.size() == batch) {
+                        num += bp.appendTuples(t, tableId, pending.iterator());
+                        pending.clear();
+                    }
+                }
+                for (Tuple tuple : pending) {
+                    bp.insertTuple(t, tableId, tuple);
+                    num++;
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
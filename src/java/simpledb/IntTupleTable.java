@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from int keys to tuples, which HashEquiJoin builds from the
+ * tuples of its left relation when it joins on INT_TYPE fields.  Keys are
+ * kept unboxed in an open-addressing table with linear probing, and the
+ * tuples in one array in the order they were added; the tuples with the
+ * same key are chained through an int array of row numbers, so neither
+ * adding nor looking up allocates anything but the occasional larger
+ * array.
+ * <p>
+ * Rows are numbered from 0 in the order they were added.  To visit the
+ * tuples with key k, in that order:
+ * <pre>
+ *     for (int row = table.first(k); row >= 0; row = table.next(row))
+ *         ... table.get(row) ...
+ * </pre>
+ */
+class IntTupleTable {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;       // slot -> key
+    private int[] heads;      // slot -> first row with the key, or EMPTY
+    private int[] tails;      // slot -> last row with the key
+    private int usedSlots = 0;
+
+    private Tuple[] rows;
+    private int[] nexts;      // row -> next row with the same key, or EMPTY
+    private int size = 0;
+
+    public IntTupleTable() {
+        this(16);
+    }
+
+    /**
+     * @param rows the number of tuples expected, to size the table for
+     */
+    public IntTupleTable(int rows) {
+        int slots = Integer.highestOneBit(Math.max(8, rows) - 1) << 2;
+        keys = new int[slots];
+        heads = new int[slots];
+        tails = new int[slots];
+        Arrays.fill(heads, EMPTY);
+        this.rows = new Tuple[Math.max(8, rows)];
+        nexts = new int[this.rows.length];
+    }
+
+    /** @return the number of tuples in the table */
+    public int size() {
+        return size;
+    }
+
+    /** Add t under key. */
+    public void add(int key, Tuple t) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            nexts = Arrays.copyOf(nexts, size * 2);
+        }
+        int row = size++;
+        rows[row] = t;
+        nexts[row] = EMPTY;
+        int slot = slot(key);
+        if (heads[slot] != EMPTY) {
+            nexts[tails[slot]] = row;
+            tails[slot] = row;
+            return;
+        }
+        keys[slot] = key;
+        heads[slot] = row;
+        tails[slot] = row;
+        if (++usedSlots * 2 > keys.length)
+            grow();
+    }
+
+    /** @return the first row with key, or a negative number if there is none */
+    public int first(int key) {
+        return heads[slot(key)];
+    }
+
+    /** @return the row after row with the same key, or a negative number */
+    public int next(int row) {
+        return nexts[row];
+    }
+
+    /** @return the tuple of row */
+    public Tuple get(int row) {
+        return rows[row];
+    }
+
+    /** Remove every tuple, keeping the space for as many again. */
+    public void clear() {
+        Arrays.fill(heads, EMPTY);
+        Arrays.fill(rows, 0, size, null);
+        usedSlots = 0;
+        size = 0;
+    }
+
+    /** @return the slot holding key, or the empty slot where it belongs */
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (heads[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Double the number of slots, keeping them at most half full. */
+    private void grow() {
+        int[] oldKeys = keys, oldHeads = heads, oldTails = tails;
+        keys = new int[oldKeys.length * 2];
+        heads = new int[keys.length];
+        tails = new int[keys.length];
+        Arrays.fill(heads, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] == EMPTY)
+                continue;
+            int slot = slot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            heads[slot] = oldHeads[i];
+            tails[slot] = oldTails[i];
+        }
+    }
+}
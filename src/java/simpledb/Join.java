@@ -4,14 +4,28 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loops join: it reads a block of tuples of the outer
+ * relation into memory, and scans the inner relation once for the whole
+ * block, so the inner relation is scanned once per block instead of once
+ * per outer tuple.  With a block of one tuple this is the simple nested
+ * loops join.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Pages of outer tuples a block holds, unless told otherwise. */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
-    private Tuple leftTuple;
+    private final int blockTuples;
+    private final ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private Tuple rightTuple;  // the inner tuple being matched against the block
+    private int nextLeft;      // the block tuple to match against it next
+    private boolean innerUsed; // whether child2 needs a rewind before the next block
 
 
 
@@ -32,7 +46,41 @@ public class Join extends Operator {
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.blockTuples = 1;
+
+    }
+
+    /**
+     * Constructor for a join that reads the outer relation a block of
+     * blockPages pages' worth of tuples at a time.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            the number of pages of outer tuples to hold in memory
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.blockTuples = blockTuples(blockPages, child1.getTupleDesc().getSize());
+    }
 
+    /**
+     * @return the number of tuples of tupleSize bytes that fill blockPages
+     *   pages, at least 1
+     */
+    public static int blockTuples(int blockPages, int tupleSize) {
+        return Math.max(1, (int) ((long) blockPages * BufferPool.getPageSize() / tupleSize));
+    }
+
+    /** @return the number of outer tuples read into memory at a time */
+    public int getBlockTuples() {
+        return blockTuples;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -75,6 +123,9 @@ public class Join extends Operator {
         super.open();
         child1.open();
         child2.open();
+        block.clear();
+        rightTuple = null;
+        innerUsed = false;
     }
 
     public void close() {
@@ -82,13 +133,17 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
+        block.clear();
+        rightTuple = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
-        leftTuple = null;
+        block.clear();
+        rightTuple = null;
+        innerUsed = false;
     }
 
     /**
@@ -105,22 +160,36 @@ public class Join extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     * <p>
+     * The results of one block come in the order of the inner relation, and
+     * for each inner tuple in the order of the outer relation.
      *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        while(leftTuple != null || child1.hasNext()) {
-            if (leftTuple == null) leftTuple = child1.next();
-            while(child2.hasNext()) {
-                Tuple rightTuple = child2.next();
+        while (true) {
+            while (rightTuple != null && nextLeft < block.size()) {
+                Tuple leftTuple = block.get(nextLeft++);
                 if (p.filter(leftTuple, rightTuple)) return joinTuples(leftTuple, rightTuple);
             }
-            child2.rewind();
-            leftTuple = null;
+            if (!block.isEmpty() && child2.hasNext()) {
+                rightTuple = child2.next();
+                nextLeft = 0;
+                continue;
+            }
+            // the block has met every inner tuple; read the next one
+            block.clear();
+            rightTuple = null;
+            while (block.size() < blockTuples && child1.hasNext())
+                block.add(child1.next());
+            if (block.isEmpty())
+                return null;
+            if (innerUsed)
+                child2.rewind();
+            innerUsed = true;
         }
-        return null;
     }
 
     private Tuple joinTuples(Tuple leftT, Tuple rightT) {
@@ -14,6 +14,72 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The physical operators a join can be computed with.  The optimizer
+     * picks the cheapest one that applies to each join of a plan (see
+     * estimateJoinCost).
+     */
+    public enum Algorithm {
+        /** Join, scanning the inner side once per outer tuple */
+        NESTED_LOOPS,
+        /** Join, scanning the inner side once per block of outer tuples */
+        BLOCK_NESTED_LOOPS,
+        /** HashEquiJoin, building a hash table of the outer side and
+         * spilling partitions of it that do not fit; equality joins only */
+        HASH,
+        /** SortMergeJoin, merging the two sides in order of their join
+         * fields and sorting any side that does not come in that order;
+         * equality and range joins */
+        SORT_MERGE
+    }
+
+    /** The share of all pairs of tuples a range join is expected to match. */
+    private static final double RANGE_SELECTIVITY = 0.3;
+
+    /** Pages of memory a join may fill with tuples, unless told otherwise. */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+
+    /** Pages of outer tuples the joins of new plans read at a time. */
+    private static volatile int blockPages = Join.DEFAULT_BLOCK_PAGES;
+
+    /** Pages of memory one join of new plans may fill with tuples. */
+    private static volatile int memoryPages = DEFAULT_MEMORY_PAGES;
+
+    /**
+     * Set how many pages of outer tuples the nested-loops joins of plans
+     * made from now on read into memory at a time; 0 joins a tuple at a
+     * time.
+     */
+    public static void setBlockPages(int pages) {
+        blockPages = Math.max(pages, 0);
+    }
+
+    /** @return how many pages of outer tuples joins read at a time */
+    public static int getBlockPages() {
+        return blockPages;
+    }
+
+    /**
+     * Set how many pages of memory each join of the plans made from now on
+     * may fill with the tuples of its outer side: the block of a block
+     * nested-loops join, or the hash table of a hash join.  A hash join
+     * whose outer side does not fit spills partitions of both sides to
+     * disk; with 0 pages no hash joins are chosen.
+     */
+    public static void setMemoryPages(int pages) {
+        memoryPages = Math.max(pages, 0);
+    }
+
+    /** @return how many pages of memory each join may fill with tuples */
+    public static int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /** @return the pages of outer tuples block nested-loops joins read at a time */
+    private static int outerBlockPages() {
+        return Math.min(blockPages, memoryPages);
+    }
+
     /**
      * Constructor
      * 
@@ -34,6 +100,9 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The join is computed with lj.algorithm, as chosen by orderJoins, or
+     * with a (block) nested-loops join if none was chosen.
      * 
      * @param lj
      *            The join being considered
@@ -68,7 +137,23 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        Algorithm a = lj.algorithm;
+        if (a == null || (a == Algorithm.HASH && lj.p != Predicate.Op.EQUALS)
+                || (a == Algorithm.SORT_MERGE && !SortMergeJoin.isMergeable(lj.p)))
+            a = outerBlockPages() > 0 ? Algorithm.BLOCK_NESTED_LOOPS : Algorithm.NESTED_LOOPS;
+        switch (a) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2, Math.max(memoryPages, 1));
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2, Math.max(memoryPages, 1));
+            break;
+        case BLOCK_NESTED_LOOPS:
+            j = new Join(p, plan1, plan2, outerBlockPages());
+            break;
+        default:
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -82,6 +167,15 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
+     * <p>
+     * The cost is that of the cheapest algorithm that can compute j (see
+     * chooseAlgorithm): a nested-loops join scans the inner side once per
+     * outer tuple, a block nested-loops join once per block of outer tuples,
+     * and both compare every pair of tuples; a hash join scans each side
+     * once and hashes each tuple once, and writes and reads back again the
+     * share of both sides that it spills for lack of memory; a sort-merge
+     * join sorts each side that is not a B+ tree file keyed on its join
+     * field, and then merges them.
      * 
      * 
      * @param j
@@ -107,15 +201,215 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            //return -1.0;
-            return cost1 + card1 * cost2 + card1 * card2;
+            boolean sorted1 = isKeyOrdered(j.t1Alias, j.f1PureName);
+            boolean sorted2 = isKeyOrdered(j.t2Alias, j.f2PureName);
+            int width1 = tupleWidth(j.t1Alias);
+            int width2 = tupleWidth(j.t2Alias);
+            return joinCost(chooseAlgorithm(j, card1, card2, cost1, cost2, sorted1, sorted2,
+                    width1, width2, null, 0),
+                    j, card1, card2, cost1, cost2, sorted1, sorted2, width1, width2);
         }
     }
 
+    /**
+     * Choose how to compute a join, given the same estimates as
+     * estimateJoinCost: the cheapest of the algorithms that apply to it, and
+     * the simplest of equally cheap ones.  A hash join applies to equality
+     * joins, and a sort-merge join to equality and range joins, when joins
+     * have memory (see setMemoryPages).  Each side is taken to be the table
+     * with its alias, so it comes in order of its join field if that table
+     * is a B+ tree file keyed on it.
+     */
+    public Algorithm chooseAlgorithm(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        return chooseAlgorithm(j, card1, card2, cost1, cost2,
+                isKeyOrdered(j.t1Alias, j.f1PureName), isKeyOrdered(j.t2Alias, j.f2PureName),
+                tupleWidth(j.t1Alias), tupleWidth(j.t2Alias), null, 0);
+    }
+
+    /**
+     * Choose how to compute a join, knowing whether each side comes in order
+     * of its join field and how wide its tuples are.  If order is not null, the result is to be sorted on
+     * that field (a quantified name) afterwards, at sortCost, unless the
+     * algorithm returns it in that order already.
+     */
+    private Algorithm chooseAlgorithm(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2,
+            int width1, int width2, String order, double sortCost) {
+        Algorithm best = Algorithm.NESTED_LOOPS;
+        double bestCost = planCost(best, j, card1, card2, cost1, cost2,
+                sorted1, sorted2, width1, width2, order, sortCost);
+        if (outerBlockPages() > 0) {
+            double cost = planCost(Algorithm.BLOCK_NESTED_LOOPS, j, card1, card2, cost1, cost2,
+                    sorted1, sorted2, width1, width2, order, sortCost);
+            if (cost < bestCost) {
+                best = Algorithm.BLOCK_NESTED_LOOPS;
+                bestCost = cost;
+            }
+        }
+        if (j instanceof LogicalSubplanJoinNode || memoryPages == 0)
+            return best;
+        if (j.p == Predicate.Op.EQUALS) {
+            double cost = planCost(Algorithm.HASH, j, card1, card2, cost1, cost2,
+                    sorted1, sorted2, width1, width2, order, sortCost);
+            if (cost < bestCost) {
+                best = Algorithm.HASH;
+                bestCost = cost;
+            }
+        }
+        if (SortMergeJoin.isMergeable(j.p)) {
+            double cost = planCost(Algorithm.SORT_MERGE, j, card1, card2, cost1, cost2,
+                    sorted1, sorted2, width1, width2, order, sortCost);
+            if (cost < bestCost)
+                best = Algorithm.SORT_MERGE;
+        }
+        return best;
+    }
+
+    /**
+     * @return the estimated cost of computing j with algorithm a, plus
+     *   sortCost if the result must then be sorted on order
+     */
+    private double planCost(Algorithm a, LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2,
+            int width1, int width2, String order, double sortCost) {
+        double cost = joinCost(a, j, card1, card2, cost1, cost2, sorted1, sorted2, width1, width2);
+        if (order != null && !ordersOn(a, j, order))
+            cost += sortCost;
+        return cost;
+    }
+
+    /**
+     * @return true if j, computed with algorithm a, returns tuples in
+     *   ascending order of the field with the given quantified name
+     */
+    private static boolean ordersOn(Algorithm a, LogicalJoinNode j, String field) {
+        return a == Algorithm.SORT_MERGE
+                && (j.f1QuantifiedName.equals(field)
+                    || (j.p == Predicate.Op.EQUALS && j.f2QuantifiedName.equals(field)));
+    }
+
+    /**
+     * @return true if the result of the left-deep plan joins comes in
+     *   ascending order of the field with the given quantified name
+     */
+    private static boolean ordersOn(Vector<LogicalJoinNode> joins, String field) {
+        if (joins.isEmpty())
+            return false;
+        LogicalJoinNode last = joins.lastElement();
+        return ordersOn(last.algorithm, last, field);
+    }
+
+    /**
+     * @return true if the table with the given alias is a B+ tree file keyed
+     *   on the field with the given pure name, so it is scanned in order of
+     *   that field
+     */
+    private boolean isKeyOrdered(String alias, String field) {
+        Integer id = p == null || alias == null ? null : p.getTableId(alias);
+        if (id == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(id);
+        if (!(f instanceof BTreeFile))
+            return false;
+        try {
+            return f.getTupleDesc().fieldNameToIndex(field) == ((BTreeFile) f).keyField();
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /** @return the estimated cost of comparing card tuples into order */
+    private static double comparisons(double card) {
+        return card * Math.log(Math.max(card, 2.0)) / Math.log(2.0);
+    }
+
+    /**
+     * @return the estimated cost of sorting card tuples of the given width
+     *   for a sort-merge join, which writes and reads back runs of them if
+     *   they do not fit in memory
+     */
+    private double sortCost(int card, int width) {
+        double bytes = (double) card * width;
+        double cost = comparisons(card);
+        if (bytes > (double) memoryPages * BufferPool.getPageSize())
+            cost += 2 * bytes / BufferPool.getPageSize() * TableStats.IOCOSTPERPAGE;
+        return cost;
+    }
+
+    /**
+     * @return the estimated cost of computing j with algorithm a, from sides
+     *   whose tuples are width1 and width2 bytes wide
+     */
+    private double joinCost(Algorithm a, LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2,
+            int width1, int width2) {
+        switch (a) {
+        case SORT_MERGE:
+            double sorts = sorted1 ? 0 : sortCost(card1, width1);
+            if (j.p == Predicate.Op.EQUALS)
+                return cost1 + cost2 + sorts + (sorted2 ? 0 : sortCost(card2, width2))
+                        + card1 + card2;
+            // a range join keeps the inner side sorted, even if it came in
+            // order, and reads the matches of each outer tuple: from memory
+            // if it fits, and from its merged run on disk if not
+            sorts += sorted2 ? card2 : sortCost(card2, width2);
+            double innerBytes = (double) card2 * width2;
+            double rereads = innerBytes > (double) memoryPages * BufferPool.getPageSize()
+                    ? RANGE_SELECTIVITY * card1 * innerBytes / BufferPool.getPageSize()
+                        * TableStats.IOCOSTPERPAGE
+                    : 0;
+            return cost1 + cost2 + sorts + rereads + card1 + RANGE_SELECTIVITY * card1 * card2;
+        case HASH:
+            // the share of the outer side that does not fit is spilled,
+            // with the inner tuples that fall in the same partitions
+            double outerBytes = (double) card1 * width1;
+            double spilled = Math.max(0.0, 1.0 - (double) memoryPages * BufferPool.getPageSize() / outerBytes);
+            double spillPages = spilled * (outerBytes + (double) card2 * width2)
+                    / BufferPool.getPageSize();
+            return cost1 + cost2 + card1 + card2 + 2 * spillPages * TableStats.IOCOSTPERPAGE;
+        case BLOCK_NESTED_LOOPS:
+            double blocks = Math.max(1.0, (double) card1 / outerBlockTuples(width1));
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        default:
+            return cost1 + (double) card1 * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * @return the number of outer tuples of the given width a block
+     *   nested-loops join reads at a time
+     */
+    private int outerBlockTuples(int width) {
+        if (outerBlockPages() == 0)
+            return 1;
+        return Join.blockTuples(outerBlockPages(), width);
+    }
+
+    /** @return the width of the tuples of the table with the given alias */
+    private int tupleWidth(String alias) {
+        Integer id = p == null || alias == null ? null : p.getTableId(alias);
+        if (id == null)
+            return Type.INT_TYPE.getLen();
+        return Database.getCatalog().getTupleDesc(id).getSize();
+    }
+
+    /**
+     * @return the width of the tuples the left-deep plan joins returns: the
+     *   sum of the widths of the tables it joins
+     */
+    private int tupleWidth(Vector<LogicalJoinNode> joins) {
+        HashSet<String> aliases = new HashSet<String>();
+        int width = 0;
+        for (LogicalJoinNode j : joins) {
+            if (aliases.add(j.t1Alias))
+                width += tupleWidth(j.t1Alias);
+            if (j.t2Alias != null && aliases.add(j.t2Alias))
+                width += tupleWidth(j.t2Alias);
+        }
+        return width;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -164,7 +458,7 @@ public class JoinOptimizer {
 
             return Math.max(card1, card2);
         }
-        return (int)(0.3*card1*card2);
+        return (int)(RANGE_SELECTIVITY*card1*card2);
 
     }
 
@@ -319,6 +613,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean sorted1, sorted2; // whether each side comes in order of its join field
+        int width1, width2;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -334,6 +630,10 @@ public class JoinOptimizer {
                             filterSelectivities.get(j.t2Alias));
             rightPkey = table2Alias == null ? false : isPkey(table2Alias,
                     j.f2PureName);
+            sorted1 = isKeyOrdered(j.t1Alias, j.f1PureName);
+            sorted2 = isKeyOrdered(table2Alias, j.f2PureName);
+            width1 = tupleWidth(j.t1Alias);
+            width2 = tupleWidth(table2Alias);
         } else {
             // news is not empty -- figure best way to join j to news
             prevBest = pc.getOrder(news);
@@ -362,6 +662,10 @@ public class JoinOptimizer {
                                 filterSelectivities.get(j.t2Alias));
                 rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
                         j.f2PureName);
+                sorted1 = ordersOn(prevBest, j.f1QuantifiedName);
+                sorted2 = isKeyOrdered(j.t2Alias, j.f2PureName);
+                width1 = tupleWidth(prevBest);
+                width2 = tupleWidth(j.t2Alias);
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
@@ -374,7 +678,10 @@ public class JoinOptimizer {
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
+                sorted1 = isKeyOrdered(j.t1Alias, j.f1PureName);
+                sorted2 = ordersOn(prevBest, j.f2QuantifiedName);
+                width1 = tupleWidth(j.t1Alias);
+                width2 = tupleWidth(prevBest);
             } else {
                 // don't consider this plan if one of j.t1 or j.t2
                 // isn't a table joined in prevBest (cross product)
@@ -382,26 +689,41 @@ public class JoinOptimizer {
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        int card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
+                rightPkey, stats);
+        double cost1, cost2;
+        Algorithm a1 = null, a2 = null;
+        if (j instanceof LogicalSubplanJoinNode) {
+            cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+            cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        } else {
+            // the last join of the query is charged for sorting its result
+            // when the query orders it and the join does not
+            String order = news.size() + 1 == joins.size() ? p.getAscendingOrderByField() : null;
+            double sortCost = order == null ? 0 : comparisons(card);
+            a1 = chooseAlgorithm(j, t1card, t2card, t1cost, t2cost,
+                    sorted1, sorted2, width1, width2, order, sortCost);
+            cost1 = planCost(a1, j, t1card, t2card, t1cost, t2cost,
+                    sorted1, sorted2, width1, width2, order, sortCost);
+            a2 = chooseAlgorithm(j2, t2card, t1card, t2cost, t1cost,
+                    sorted2, sorted1, width2, width1, order, sortCost);
+            cost2 = planCost(a2, j2, t2card, t1card, t2cost, t1cost,
+                    sorted2, sorted1, width2, width1, order, sortCost);
+        }
         if (cost2 < cost1) {
-            boolean tmp;
             j = j2;
             cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+            a1 = a2;
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        if (a1 != null)
+            j = j.withAlgorithm(a1);
 
         CostCard cc = new CostCard();
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
+        cc.card = card;
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
         cc.plan.addElement(j); // prevbest is left -- add new join to end
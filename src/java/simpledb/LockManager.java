@@ -0,0 +1,267 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager keeps the page-level shared/exclusive locks used by the
+ * BufferPool to enforce strict two-phase locking.
+ * <p>
+ * The lock table is split into stripes by PageId hash, each protected by its
+ * own monitor, so that transactions locking unrelated pages never contend.
+ * A transaction that holds a shared lock may upgrade it to an exclusive one.
+ * <p>
+ * Deadlocks are detected eagerly: before a transaction waits, its edges are
+ * added to a wait-for graph and the graph is searched for a cycle through
+ * it. If one is found, the youngest transaction in the cycle (the one with
+ * the largest id) is chosen as the victim and its pending acquire throws
+ * TransactionAbortedException.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Default number of lock table stripes. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /** The lock state of a single page. Protected by the stripe's monitor. */
+    private static class PageLock {
+        TransactionId exclusive = null;
+        final HashSet<TransactionId> shared = new HashSet<TransactionId>();
+
+        boolean isFree() {
+            return exclusive == null && shared.isEmpty();
+        }
+    }
+
+    private static class Stripe {
+        final HashMap<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+    }
+
+    private final Stripe[] stripes;
+
+    /** The pages each transaction holds a lock on. */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> pagesLocked =
+            new ConcurrentHashMap<TransactionId, Set<PageId>>();
+
+    // the wait-for graph; all fields below are protected by graphLock
+    private final Object graphLock = new Object();
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor =
+            new HashMap<TransactionId, Set<TransactionId>>();
+    private final HashMap<TransactionId, Stripe> waitingOn = new HashMap<TransactionId, Stripe>();
+    private final HashMap<TransactionId, PageId> waitingPage = new HashMap<TransactionId, PageId>();
+    private final HashSet<TransactionId> victims = new HashSet<TransactionId>();
+
+    public LockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public LockManager(int numStripes) {
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        return stripes[(pid.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking until it is granted. A
+     * READ_ONLY request takes a shared lock, a READ_WRITE request an
+     * exclusive lock, upgrading a shared lock tid already holds.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of a deadlock
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Stripe stripe = stripeFor(pid);
+        while (true) {
+            Stripe toWake = null;
+            synchronized (stripe) {
+                PageLock lock = stripe.locks.get(pid);
+                if (lock == null) {
+                    lock = new PageLock();
+                    stripe.locks.put(pid, lock);
+                }
+                Set<TransactionId> blockers = blockers(lock, tid, exclusive);
+                if (blockers.isEmpty()) {
+                    grant(lock, tid, pid, exclusive);
+                    synchronized (graphLock) {
+                        // if tid was picked as a victim, the deadlock has
+                        // since been broken some other way
+                        victims.remove(tid);
+                        stopWaitingLocked(tid);
+                    }
+                    return;
+                }
+
+                TransactionId victim;
+                synchronized (graphLock) {
+                    if (victims.remove(tid)) {
+                        stopWaitingLocked(tid);
+                        throw new TransactionAbortedException();
+                    }
+                    waitsFor.put(tid, blockers);
+                    waitingOn.put(tid, stripe);
+                    waitingPage.put(tid, pid);
+                    victim = findDeadlockVictim(tid);
+                    if (victim != null && victim.equals(tid)) {
+                        stopWaitingLocked(tid);
+                        Debug.log(1, "LockManager: aborting %d to break a deadlock", tid.getId());
+                        throw new TransactionAbortedException();
+                    }
+                    if (victim != null && victims.add(victim)) {
+                        Debug.log(1, "LockManager: aborting %d to break a deadlock", victim.getId());
+                        toWake = waitingOn.get(victim);
+                    }
+                }
+
+                if (toWake == null) {
+                    try {
+                        stripe.wait();
+                    } catch (InterruptedException e) {
+                        stopWaiting(tid);
+                        throw new TransactionAbortedException();
+                    }
+                }
+            }
+            // wake the victim outside our own stripe, so two transactions
+            // never hold two stripe monitors at once
+            if (toWake != null) {
+                synchronized (toWake) {
+                    toWake.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** @return the transactions whose locks on the page conflict with the request */
+    private Set<TransactionId> blockers(PageLock lock, TransactionId tid, boolean exclusive) {
+        HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+        if (lock.exclusive != null && !lock.exclusive.equals(tid))
+            blockers.add(lock.exclusive);
+        if (exclusive) {
+            for (TransactionId holder : lock.shared) {
+                if (!holder.equals(tid))
+                    blockers.add(holder);
+            }
+        }
+        return blockers;
+    }
+
+    private void grant(PageLock lock, TransactionId tid, PageId pid, boolean exclusive) {
+        if (exclusive) {
+            lock.exclusive = tid;
+            lock.shared.remove(tid);
+        } else if (!tid.equals(lock.exclusive)) {
+            lock.shared.add(tid);
+        }
+        Set<PageId> pages = pagesLocked.get(tid);
+        if (pages == null) {
+            pages = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            Set<PageId> prev = pagesLocked.putIfAbsent(tid, pages);
+            if (prev != null)
+                pages = prev;
+        }
+        pages.add(pid);
+    }
+
+    private void stopWaiting(TransactionId tid) {
+        synchronized (graphLock) {
+            stopWaitingLocked(tid);
+        }
+    }
+
+    private void stopWaitingLocked(TransactionId tid) {
+        waitsFor.remove(tid);
+        waitingOn.remove(tid);
+        waitingPage.remove(tid);
+    }
+
+    /**
+     * Search the wait-for graph for a cycle through tid.
+     *
+     * @return the youngest transaction on such a cycle, or null if there is none
+     */
+    private TransactionId findDeadlockVictim(TransactionId tid) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        HashSet<TransactionId> visited = new HashSet<TransactionId>();
+        path.add(tid);
+        if (!findCycle(tid, tid, path, visited))
+            return null;
+        TransactionId youngest = tid;
+        for (TransactionId t : path) {
+            if (t.getId() > youngest.getId())
+                youngest = t;
+        }
+        return youngest;
+    }
+
+    private boolean findCycle(TransactionId start, TransactionId cur,
+                              ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+        Set<TransactionId> next = waitsFor.get(cur);
+        if (next == null)
+            return false;
+        for (TransactionId t : next) {
+            if (t.equals(start))
+                return true;
+            // transactions already chosen as victims are about to go away
+            if (victims.contains(t) || !visited.add(t))
+                continue;
+            path.add(t);
+            if (findCycle(start, t, path, visited))
+                return true;
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
+
+    /** Return true if tid holds a shared or exclusive lock on pid. */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> pages = pagesLocked.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    /** Release whatever lock tid holds on pid, waking up any waiters. */
+    public void release(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            PageLock lock = stripe.locks.get(pid);
+            if (lock != null) {
+                if (tid.equals(lock.exclusive))
+                    lock.exclusive = null;
+                lock.shared.remove(tid);
+                if (lock.isFree())
+                    stripe.locks.remove(pid);
+            }
+            Set<PageId> pages = pagesLocked.get(tid);
+            if (pages != null)
+                pages.remove(pid);
+            synchronized (graphLock) {
+                // the waiters no longer wait for tid here, though they only
+                // refresh their own edges once they wake; until then a
+                // stale edge could close a cycle that does not exist
+                for (Map.Entry<TransactionId, PageId> w : waitingPage.entrySet()) {
+                    if (w.getValue().equals(pid))
+                        waitsFor.get(w.getKey()).remove(tid);
+                }
+            }
+            stripe.notifyAll();
+        }
+    }
+
+    /** Release every lock held by tid and forget that it was a deadlock victim. */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pages = pagesLocked.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages.toArray(new PageId[0]))
+                release(tid, pid);
+        }
+        synchronized (graphLock) {
+            victims.remove(tid);
+            stopWaitingLocked(tid);
+        }
+    }
+}
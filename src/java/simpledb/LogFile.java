@@ -2,8 +2,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.TimeUnit;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,33 +40,47 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> Positions in the log are log sequence numbers (LSNs), which
+are never rebased or reused: resetting the log starts it again at
+the next segment.  The log
+records are kept in fixed-size segment files next to the log file
+(see LogSegments); truncating the log deletes or recycles the
+segments that are no longer needed.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log file itself only holds two long integers: the LSN of
+the last written checkpoint, or -1 if there are no checkpoints, and
+the LSN of the first record still in the segments.
+
+<li> Log records are variable length.  They are appended to an
+in-memory buffer, and only reach the segments when it fills up, on
+force(), or before the log is read back.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of a page id and the bytes of the page
+that the update changed.  The page id is a byte tag naming the kind
+of page (HEAP_PAGE or BTREE_PAGE) followed by the integers of
+PageId.serialize().  The changed bytes are a PageDelta, holding the
+old and new contents of each changed range of the page.  See
+LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  This is followed by the dirty page table:
+an integer count of pages whose UPDATE record was logged but which were
+not yet written, and for each a page id (as in UPDATE records) and the
+long integer offset of its oldest such record.
 
 </ul>
 
@@ -74,7 +89,8 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // checkpoint LSN and first record LSN
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,15 +100,106 @@ public class LogFile {
     static final int CHECKPOINT_RECORD = 5;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // page kinds in UPDATE records
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_PAGE = 2;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    private long forcedOffset = 0; // LSN up to which the log is on disk, protected by this
+
+    // log buffer, whose contents belong at LSN bufferOffset, so
+    // that a record's offset (LSN) is known as soon as it is appended.
+    // protected by this
+    final static int LOG_BUFFER_SIZE = 64 * 1024;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+    private long bufferOffset = 0;
+    private final DataOutputStream out = new DataOutputStream(new OutputStream() {
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining())
+                drain();
+            buffer.put((byte)b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining())
+                    drain();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    });
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /**
+     * System property giving the largest number of COMMIT records forced
+     * together, e.g. -Dsimpledb.groupCommitBatch=32.  1 (the default)
+     * disables group commit.
+     */
+    public final static String GROUP_COMMIT_BATCH_PROPERTY = "simpledb.groupCommitBatch";
+    /**
+     * System property giving how many microseconds the group commit
+     * flusher waits for more committers before forcing a partial batch.
+     */
+    public final static String GROUP_COMMIT_WINDOW_PROPERTY = "simpledb.groupCommitWindowMicros";
+
+    /** The page and changed bytes of an UPDATE record. */
+    private static class LoggedUpdate {
+        final PageId pid;
+        final PageDelta delta;
+
+        LoggedUpdate(PageId pid, PageDelta delta) {
+            this.pid = pid;
+            this.delta = delta;
+        }
+    }
+
+    /** A commit waiting for the group commit flusher. */
+    private static class PendingCommit {
+        final long tid;
+        boolean done = false;
+        IOException error = null;
+
+        PendingCommit(long tid) {
+            this.tid = tid;
+        }
+    }
+
+    /**
+     * System property that makes logCheckpoint take fuzzy checkpoints,
+     * e.g. -Dsimpledb.fuzzyCheckpoints=true.
+     */
+    public final static String FUZZY_CHECKPOINTS_PROPERTY = "simpledb.fuzzyCheckpoints";
+    private volatile boolean fuzzyCheckpoints = Boolean.getBoolean(FUZZY_CHECKPOINTS_PROPERTY);
+
+    /**
+     * The dirty page table: pages whose UPDATE record is in the log but
+     * which have not been written yet, with the offset of the oldest such
+     * record.  Recovery has to redo from the oldest of these.
+     */
+    private final HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>(); // protected by this
+
+    // group commit state, protected by this
+    private int groupCommitBatch = 1;
+    private long groupCommitWindowNanos = 0;
+    private Thread flusher = null;
+    private final ArrayList<PendingCommit> pendingCommits = new ArrayList<PendingCommit>();
+    private int forceWaiters = 0;         // callers of forceTo waiting for the next flush
+    private long forceWanted = 0;         // the highest LSN they wait for
+    private long flushes = 0;             // runs of flushCommits
+    private long failedFlush = -1;        // the last run whose force failed
+    private IOException flushError = null; // and why
+    private long commitsForced = 0;
+    private long forces = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,7 +214,11 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, Long.getLong(LogSegments.SEGMENT_SIZE_PROPERTY,
+                LogSegments.DEFAULT_SEGMENT_SIZE));
         recoveryUndecided = true;
+        setGroupCommit(Integer.getInteger(GROUP_COMMIT_BATCH_PROPERTY, 1),
+                Long.getLong(GROUP_COMMIT_WINDOW_PROPERTY, 0));
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,14 +238,31 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            resetLog();
         }
     }
 
+    // throw away the whole log and start again, with no records
+    private void resetLog() throws IOException {
+        buffer.clear();
+        segments.reset();
+        raf.setLength(0);
+        writeHeader(NO_CHECKPOINT_ID, segments.getEnd());
+        bufferOffset = currentOffset = forcedOffset = segments.getEnd();
+    }
+
+    private void writeHeader(long checkpoint, long firstRecord) throws IOException {
+        raf.seek(0);
+        raf.writeLong(checkpoint);
+        raf.writeLong(firstRecord);
+    }
+
+    // open a reader at lsn, once the buffered records are in the segments
+    private LogSegments.Reader reader(long lsn) throws IOException {
+        drain();
+        return segments.openReader(lsn);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +286,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = appendOffset();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -170,6 +298,11 @@ public class LogFile {
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        With group commit enabled, the record is queued instead and
+        the caller waits until the flusher thread has written and
+        forced it, together with the records of every other
+        transaction that committed in the meantime.
 
         @param tid The committing transaction.
     */
@@ -178,16 +311,190 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        if (flusher == null) {
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = appendOffset();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+            commitsForced++;
+            return;
+        }
+
+        PendingCommit commit = new PendingCommit(tid.getId());
+        pendingCommits.add(commit);
+        notifyAll();
+        boolean interrupted = false;
+        while (!commit.done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the record is queued, so we must learn whether it made it
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (commit.error != null)
+            throw commit.error;
+    }
+
+    /**
+     * Configure group commit.
+     *
+     * @param maxBatch the largest number of COMMIT records forced
+     *   together; 1 or less disables group commit, so that every
+     *   commit forces the log by itself.
+     * @param windowMicros how long the flusher waits for a batch to fill
+     *   up before forcing what it has; 0 forces as soon as the flusher
+     *   gets to run, so only commits that arrive while it is busy are
+     *   grouped.
+     */
+    public synchronized void setGroupCommit(int maxBatch, long windowMicros) throws IOException {
+        groupCommitBatch = Math.max(maxBatch, 1);
+        groupCommitWindowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(windowMicros, 0));
+        if (groupCommitBatch > 1 && flusher == null) {
+            flusher = new GroupCommitFlusher();
+            flusher.start();
+        } else if (groupCommitBatch == 1 && flusher != null) {
+            // the old flusher exits once it sees it was replaced
+            flusher = null;
+            flushCommits();
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the average number of COMMIT records made durable by one
+     *   force of the log, counting every force, or 0 if nothing has
+     *   committed.
+     */
+    public synchronized double getCommitsPerForce() {
+        return forces == 0 ? 0 : (double)commitsForced / forces;
+    }
+
+    /** @return the LSN after the last record appended */
+    public synchronized long getCurrentOffset() {
+        return currentOffset;
+    }
+
+    /**
+     * Make sure the log is on disk up to lsn, e.g. before writing pages
+     * whose UPDATE records end there.  With group commit enabled the
+     * flusher thread does the force, so that one force covers the records
+     * of every transaction committing at the same time; the caller should
+     * not hold the BufferPool lock meanwhile, or the others cannot get
+     * their records in.
+     */
+    public synchronized void forceTo(long lsn) throws IOException {
+        if (lsn <= forcedOffset)
+            return;
+        if (flusher == null) {
+            force();
+            return;
+        }
+        forceWanted = Math.max(forceWanted, lsn);
+        forceWaiters++;
+        notifyAll();
+        long since = flushes;
+        boolean interrupted = false;
+        try {
+            while (lsn > forcedOffset) {
+                if (failedFlush >= since)
+                    throw flushError;
+                if (flusher == null) {
+                    force();
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Append all queued COMMIT records, force them with a single write,
+     * together with the records forceTo waits for, and wake up their
+     * transactions.  Caller must hold this.
+     */
+    private void flushCommits() {
+        if (pendingCommits.isEmpty() && forceWanted <= forcedOffset)
+            return;
+        IOException error = null;
+        try {
+            for (PendingCommit commit : pendingCommits) {
+                out.writeInt(COMMIT_RECORD);
+                out.writeLong(commit.tid);
+                out.writeLong(currentOffset);
+                currentOffset = appendOffset();
+            }
+            force();
+            commitsForced += pendingCommits.size();
+        } catch (IOException e) {
+            error = e;
+            failedFlush = flushes;
+            flushError = e;
+        }
+        flushes++;
+        forceWaiters = 0; // even if the force failed, they are answered
+        for (PendingCommit commit : pendingCommits) {
+            if (error == null)
+                tidToFirstLogRecord.remove(commit.tid);
+            commit.error = error;
+            commit.done = true;
+        }
+        pendingCommits.clear();
+        notifyAll();
+    }
+
+    /**
+     * Background thread that forces queued COMMIT records, and the records
+     * forceTo waits for, once the batch is full or the window has passed.
+     */
+    private class GroupCommitFlusher extends Thread {
+        GroupCommitFlusher() {
+            super("simpledb group commit");
+            setDaemon(true);
+        }
+
+        public void run() {
+            synchronized (LogFile.this) {
+                try {
+                    while (flusher == this) {
+                        if (pendingCommits.isEmpty() && forceWanted <= forcedOffset) {
+                            LogFile.this.wait();
+                            continue;
+                        }
+                        long deadline = System.nanoTime() + groupCommitWindowNanos;
+                        long left;
+                        while (flusher == this
+                               && pendingCommits.size() + forceWaiters < groupCommitBatch
+                               && (left = deadline - System.nanoTime()) > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(LogFile.this, left);
+                        }
+                        flushCommits();
+                    }
+                } catch (InterruptedException e) {
+                    // go back to forcing each commit; release the queued ones first
+                    if (flusher == this) {
+                        flusher = null;
+                        flushCommits();
+                    }
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The page
+        stays in the dirty page table until pageWritten is called.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -197,102 +504,85 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
+        PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData());
+        if (delta.isEmpty())
+            return; // nothing to redo or undo
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page id (see writePageId)
+           changed bytes (see PageDelta.writeTo)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageId(out, after.getId());
+        delta.writeTo(out);
+        if (!dirtyPages.containsKey(after.getId()))
+            dirtyPages.put(after.getId(), currentOffset);
+        out.writeLong(currentOffset);
+        currentOffset = appendOffset();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Tell the log that the page was written since it was last logged.
+        @param pid The page that was written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        if (pid instanceof HeapPageId)
+            out.writeByte(HEAP_PAGE);
+        else if (pid instanceof BTreePageId)
+            out.writeByte(BTREE_PAGE);
+        else
+            throw new IOException("cannot log pages with ids of " + pid.getClass());
+        for (int i : pid.serialize())
+            out.writeInt(i);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    PageId readPageId(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+        case HEAP_PAGE:
+            return new HeapPageId(in.readInt(), in.readInt());
+        case BTREE_PAGE:
+            return new BTreePageId(in.readInt(), in.readInt(), in.readInt());
+        default:
+            throw new IOException("unknown page kind " + kind + " in log");
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /**
+     * Build the page with the given id and contents, for writing recovered
+     * pages back to their file.
+     */
+    static Page createPage(PageId pid, byte[] data) throws IOException {
+        if (pid instanceof HeapPageId) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (file instanceof HeapFile)
+                return ((HeapFile)file).createPage((HeapPageId)pid, ByteBuffer.wrap(data));
+            return new HeapPage((HeapPageId)pid, data);
+        }
+        BTreePageId id = (BTreePageId)pid;
+        switch (id.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(id, data);
+        case BTreePageId.HEADER:
+            return new BTreeHeaderPage(id, data);
+        default:
+            int keyField = ((BTreeFile)Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+            if (id.pgcateg() == BTreePageId.INTERNAL)
+                return new BTreeInternalPage(id, data, keyField);
+            return new BTreeLeafPage(id, data, keyField);
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +597,136 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = appendOffset();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        A sharp checkpoint (the default) flushes every page of the buffer
+        pool.  A fuzzy checkpoint only records the active transactions
+        and the dirty page table, so it never waits for the buffer pool
+        or the disk.  Either way the log is truncated afterwards.
+        @see #setFuzzyCheckpoints
+    */
     public void logCheckpoint() throws IOException {
+        if (fuzzyCheckpoints) {
+            synchronized (this) {
+                preAppend();
+                writeCheckpoint();
+                logTruncate();
+            }
+            return;
+        }
+
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                writeCheckpoint();
             }
         }
 
         logTruncate();
     }
 
+    /** Take fuzzy rather than sharp checkpoints in logCheckpoint.
+        @param fuzzy Whether checkpoints should be fuzzy
+    */
+    public void setFuzzyCheckpoints(boolean fuzzy) {
+        fuzzyCheckpoints = fuzzy;
+    }
+
+    // append a checkpoint record and point the log header at it
+    private void writeCheckpoint() throws IOException {
+        long startCpOffset;
+        Set<Long> keys = tidToFirstLogRecord.keySet();
+        Iterator<Long> els = keys.iterator();
+        startCpOffset = appendOffset();
+        out.writeInt(CHECKPOINT_RECORD);
+        out.writeLong(-1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        out.writeInt(keys.size());
+        while (els.hasNext()) {
+            Long key = els.next();
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+            out.writeLong(key);
+            //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+            out.writeLong(tidToFirstLogRecord.get(key));
+        }
+
+        //write the dirty page table
+        out.writeInt(dirtyPages.size());
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
+        }
+
+        //once the CP is written, make sure the CP location in the
+        // log file is updated
+        out.writeLong(currentOffset);
+        currentOffset = appendOffset();
+        // the record must be in the segments before anything points to it
+        drain();
+        raf.seek(0);
+        raf.writeLong(startCpOffset);
+        //Debug.log("CP OFFSET = " + currentOffset);
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Recovery needs nothing before the oldest of the
+        last checkpoint, the first records of the transactions active at
+        it, and the records of its dirty pages, so the segments holding
+        only older records are dropped; nothing is copied. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
         raf.seek(0);
         long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
         long minLogRecord = cpLoc;
+        LogSegments.Reader in = reader(cpLoc);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        int numOutstanding = in.readInt();
 
-            } catch (EOFException e) {
-                break;
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(in);
+            minLogRecord = Math.min(minLogRecord, in.readLong());
+        }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " NEW LENGTH: " + (segments.getEnd() - minLogRecord));
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        // the header must stop pointing below the new start before the
+        // segments go away
+        writeHeader(cpLoc, minLogRecord);
+        segments.truncate(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,7 +743,206 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    throw new NoSuchElementException("no BEGIN record for transaction " + tid.getId());
+
+                ArrayList<LoggedUpdate> updates = new ArrayList<LoggedUpdate>();
+                LogSegments.Reader in = reader(firstRecord);
+                long end = scanEnd(firstRecord);
+                while (in.getPosition() < end) {
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    if (type == UPDATE_RECORD) {
+                        LoggedUpdate update = new LoggedUpdate(readPageId(in), PageDelta.readFrom(in));
+                        if (recordTid == tid.getId())
+                            updates.add(update);
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpointBody(in);
+                    }
+                    in.readLong();
+                }
+
+                Map<PageId,byte[]> pages = new HashMap<PageId,byte[]>();
+                undo(pages, updates);
+                installPages(pages);
+            }
+        }
+    }
+
+    /**
+     * Replay the history of page pid that the log still holds onto image, a
+     * copy of the page whose bytes on disk are damaged.  Updates are redone
+     * in log order, and those of a transaction are undone again where it
+     * aborted, which brings back the last version of the page that was
+     * written.  Bytes that no logged update touched are left as they are,
+     * so the caller has to check the result.
+     *
+     * @return true if the log holds an update of pid
+     * @see PageChecksums
+     */
+    public synchronized boolean replayPage(PageId pid, byte[] image) throws IOException {
+        if (raf.length() < 2 * LONG_SIZE)
+            return false;
+        raf.seek(LONG_SIZE);
+        long logStart = raf.readLong();
+        boolean found = false;
+        // the updates of pid by each transaction that may still abort
+        Map<Long,List<PageDelta>> open = new HashMap<Long,List<PageDelta>>();
+        LogSegments.Reader in = reader(logStart);
+        long end = scanEnd(logStart);
+        while (in.getPosition() < end) {
+            int type = in.readInt();
+            long recordTid = in.readLong();
+            if (type == UPDATE_RECORD) {
+                PageId updated = readPageId(in);
+                PageDelta delta = PageDelta.readFrom(in);
+                if (updated.equals(pid)) {
+                    delta.redo(image);
+                    found = true;
+                    List<PageDelta> deltas = open.get(recordTid);
+                    if (deltas == null) {
+                        deltas = new ArrayList<PageDelta>();
+                        open.put(recordTid, deltas);
+                    }
+                    deltas.add(delta);
+                }
+            } else if (type == ABORT_RECORD) {
+                List<PageDelta> deltas = open.remove(recordTid);
+                if (deltas != null) {
+                    for (int i = deltas.size() - 1; i >= 0; i--)
+                        deltas.get(i).undo(image);
+                }
+            } else if (type == COMMIT_RECORD) {
+                open.remove(recordTid);
+            } else if (type == CHECKPOINT_RECORD) {
+                skipCheckpointBody(in);
+            }
+            in.readLong();
+        }
+        return found;
+    }
+
+    /**
+     * @return the LSN after the last whole record of the log, where scans
+     *   starting at lsn stop.  Before recovery has trimmed the log after a
+     *   crash, it has to be looked for.
+     */
+    private long scanEnd(long lsn) throws IOException {
+        drain();
+        return recoveryUndecided ? findEnd(lsn) : currentOffset;
+    }
+
+    /**
+     * @return the LSN after the last whole record from lsn on.  A crash can
+     *   leave the last record half written, followed by the old bytes of a
+     *   reused segment; neither ends with its own LSN.
+     */
+    private long findEnd(long lsn) throws IOException {
+        LogSegments.Reader in = segments.openReader(lsn);
+        long end = lsn;
+        try {
+            while (skipRecord(in))
+                end = in.getPosition();
+        } catch (EOFException e) {
+            // the last record was cut short
+        }
+        return end;
+    }
+
+    // skip one record, returning false if it is not a record at all
+    private boolean skipRecord(LogSegments.Reader in) throws IOException {
+        long start = in.getPosition();
+        int type = in.readInt();
+        in.readLong();
+        switch (type) {
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        case UPDATE_RECORD:
+            if (!skipPageId(in))
+                return false;
+            long changed = PageDelta.readLength(in);
+            if (changed < 0)
+                return false;
+            in.seek(in.getPosition() + changed);
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = in.readInt();
+            if (numXactions < 0)
+                return false;
+            in.seek(in.getPosition() + numXactions * 2L * LONG_SIZE);
+            int numDirty = in.readInt();
+            if (numDirty < 0)
+                return false;
+            for (int i = 0; i < numDirty; i++) {
+                if (!skipPageId(in))
+                    return false;
+                in.readLong();
             }
+            break;
+        default:
+            return false;
+        }
+        return in.readLong() == start;
+    }
+
+    // skip a page id written by writePageId, returning false if it is not one
+    private boolean skipPageId(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        if (kind != HEAP_PAGE && kind != BTREE_PAGE)
+            return false;
+        in.readInt();
+        in.readInt();
+        if (kind == BTREE_PAGE)
+            in.readInt();
+        return true;
+    }
+
+    // skip the transaction list of a checkpoint record
+    private void skipCheckpointBody(LogSegments.Reader in) throws IOException {
+        int numXactions = in.readInt();
+        in.seek(in.getPosition() + numXactions * 2 * LONG_SIZE);
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            readPageId(in);
+            in.readLong();
+        }
+    }
+
+    /** Undo the given updates of one transaction, newest first. */
+    private void undo(Map<PageId,byte[]> pages, List<LoggedUpdate> updates) {
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LoggedUpdate update = updates.get(i);
+            update.delta.undo(pageImage(pages, update.pid, update.delta));
+        }
+    }
+
+    /**
+     * @return the image of pid being recovered in pages, starting from its
+     *   contents on disk; a page that never reached the disk starts out
+     *   zeroed, like a new page.
+     */
+    private byte[] pageImage(Map<PageId,byte[]> pages, PageId pid, PageDelta delta) {
+        byte[] image = pages.get(pid);
+        if (image == null) {
+            try {
+                image = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+            } catch (IllegalArgumentException e) {
+                image = new byte[delta.getPageSize()];
+            }
+            pages.put(pid, image);
+        }
+        return image;
+    }
+
+    // write recovered page images to disk, and drop any cached copy
+    private void installPages(Map<PageId,byte[]> pages) throws IOException {
+        for (Map.Entry<PageId,byte[]> e : pages.entrySet()) {
+            PageId pid = e.getKey();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(createPage(pid, e.getValue()));
+            Database.getBufferPool().discardPage(pid);
         }
     }
 
@@ -477,8 +952,10 @@ public class LogFile {
     */
     public synchronized void shutdown() {
         try {
+            setGroupCommit(1, 0);
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +965,221 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery starts from the last checkpoint.  Updates written before
+        it are on disk, except for the pages in its dirty page table, so
+        redo starts at the oldest of the checkpoint and those pages'
+        records.  The log is read further back only to find the updates
+        of transactions that were still running at the checkpoint.
+        <p>
+        The first pass finds the outcome of every transaction.  The
+        second redoes the updates of committed transactions (and of
+        writers that never logged a BEGIN); aborted transactions were
+        rolled back before their ABORT record was written, so they are
+        skipped.  Finally the transactions with no outcome are undone and
+        get an ABORT record, so that a second recovery is a no-op.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                buffer.clear();
+                dirtyPages.clear();
+                if (raf.length() < 2 * LONG_SIZE) {
+                    resetLog();
+                    return;
+                }
+
+                // where do redo and undo have to start?
+                raf.seek(0);
+                long cpOffset = raf.readLong();
+                long logStart = raf.readLong();
+                // the last segment may be a reused spare, whose old bytes
+                // follow the records written to it, and the last record
+                // may be cut short; the log ends before either, so that
+                // the scans below stop there and the ABORT records of the
+                // losers overwrite them
+                long end = findEnd(logStart);
+                segments.setEnd(end);
+                bufferOffset = currentOffset = forcedOffset = end;
+                long redoStart = logStart;
+                long scanStart = logStart;
+                // the updates of each running transaction, in log order
+                Map<Long,List<LoggedUpdate>> losers = new HashMap<Long,List<LoggedUpdate>>();
+                LogSegments.Reader in = reader(logStart);
+                if (cpOffset != NO_CHECKPOINT_ID) {
+                    in.seek(cpOffset);
+                    if (in.readInt() != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    in.readLong();
+                    redoStart = cpOffset;
+                    int numXactions = in.readInt();
+                    long firstRecord = cpOffset;
+                    for (int i = 0; i < numXactions; i++) {
+                        long xid = in.readLong();
+                        losers.put(xid, new ArrayList<LoggedUpdate>());
+                        firstRecord = Math.min(firstRecord, in.readLong());
+                    }
+                    int numDirty = in.readInt();
+                    for (int i = 0; i < numDirty; i++) {
+                        readPageId(in);
+                        redoStart = Math.min(redoStart, in.readLong());
+                    }
+                    scanStart = Math.min(firstRecord, redoStart);
+                }
+
+                // analysis: find the outcome of each transaction
+                Set<Long> aborted = new HashSet<Long>();
+                in.seek(scanStart);
+                while (in.getPosition() < end) {
+                    long offset = in.getPosition();
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    switch (type) {
+                    case BEGIN_RECORD:
+                        losers.put(recordTid, new ArrayList<LoggedUpdate>());
+                        break;
+                    case UPDATE_RECORD:
+                        LoggedUpdate update = new LoggedUpdate(readPageId(in), PageDelta.readFrom(in));
+                        List<LoggedUpdate> updates = losers.get(recordTid);
+                        if (updates != null)
+                            updates.add(update);
+                        break;
+                    case COMMIT_RECORD:
+                        losers.remove(recordTid);
+                        break;
+                    case ABORT_RECORD:
+                        losers.remove(recordTid);
+                        aborted.add(recordTid);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        skipCheckpointBody(in);
+                        break;
+                    default:
+                        throw new IOException("Unknown log record type " + type + " at offset " + offset);
+                    }
+                    in.readLong();
+                }
+
+                // redo the winners
+                Map<PageId,byte[]> pages = new HashMap<PageId,byte[]>();
+                in.seek(redoStart);
+                while (in.getPosition() < end) {
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    if (type == UPDATE_RECORD) {
+                        PageId pid = readPageId(in);
+                        PageDelta delta = PageDelta.readFrom(in);
+                        if (!aborted.contains(recordTid) && !losers.containsKey(recordTid))
+                            delta.redo(pageImage(pages, pid, delta));
+                    } else if (type == CHECKPOINT_RECORD) {
+                        skipCheckpointBody(in);
+                    }
+                    in.readLong();
+                }
+
+                // undo the losers
+                for (List<LoggedUpdate> updates : losers.values())
+                    undo(pages, updates);
+                installPages(pages);
+
+                // the losers are done, so a later recovery must not undo them again
+                for (Long xid : losers.keySet()) {
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(xid);
+                    out.writeLong(currentOffset);
+                    currentOffset = appendOffset();
+                }
+                force();
+                tidToFirstLogRecord.clear();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
         // some code goes here
+        raf.seek(0);
+        long cpOffset = raf.readLong();
+        long logStart = raf.readLong();
+        System.out.println("checkpoint: " + (cpOffset == NO_CHECKPOINT_ID ? "none" : cpOffset));
+        LogSegments.Reader in = reader(logStart);
+        long end = scanEnd(logStart);
+        while (in.getPosition() < end) {
+            long offset = in.getPosition();
+            int type = in.readInt();
+            long recordTid = in.readLong();
+            StringBuilder line = new StringBuilder();
+            line.append(offset).append(": ");
+            switch (type) {
+            case ABORT_RECORD:
+                line.append("ABORT tid=").append(recordTid);
+                break;
+            case COMMIT_RECORD:
+                line.append("COMMIT tid=").append(recordTid);
+                break;
+            case BEGIN_RECORD:
+                line.append("BEGIN tid=").append(recordTid);
+                break;
+            case UPDATE_RECORD:
+                PageId pid = readPageId(in);
+                PageDelta delta = PageDelta.readFrom(in);
+                line.append("UPDATE tid=").append(recordTid).append(" table=")
+                    .append(pid.getTableId()).append(" page=").append(pid.pageNumber())
+                    .append(" changed=").append(delta.getChangedBytes())
+                    .append(" bytes in ").append(delta.getNumRanges()).append(" ranges");
+                break;
+            case CHECKPOINT_RECORD:
+                line.append("CHECKPOINT active={");
+                int numXactions = in.readInt();
+                for (int i = 0; i < numXactions; i++) {
+                    if (i > 0)
+                        line.append(", ");
+                    line.append(in.readLong()).append("@").append(in.readLong());
+                }
+                line.append("} dirty={");
+                int numDirty = in.readInt();
+                for (int i = 0; i < numDirty; i++) {
+                    if (i > 0)
+                        line.append(", ");
+                    PageId dirty = readPageId(in);
+                    line.append(dirty.getTableId()).append(":").append(dirty.pageNumber())
+                        .append("@").append(in.readLong());
+                }
+                line.append("}");
+                break;
+            default:
+                line.append("UNKNOWN type=").append(type);
+                System.out.println(line);
+                return;
+            }
+            line.append(" (start ").append(in.readLong()).append(")");
+            System.out.println(line);
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        drain();
+        segments.force();
+        forcedOffset = bufferOffset;
+        forceWaiters = 0; // whatever they wait for is on disk now
+        forces++;
+    }
+
+    /** @return the LSN the next appended byte goes to */
+    private long appendOffset() {
+        return bufferOffset + buffer.position();
+    }
+
+    /** Write the buffered records to the segments, without forcing them. */
+    private void drain() throws IOException {
+        if (buffer.position() == 0)
+            return; // e.g. a log read before it is recovered
+        buffer.flip();
+        segments.write(buffer, bufferOffset);
+        bufferOffset = segments.getEnd();
+        buffer.clear();
     }
 
 }
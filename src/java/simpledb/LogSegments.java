@@ -0,0 +1,388 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The records of a LogFile, stored in a sequence of fixed-size segment
+ * files.  A log sequence number (LSN) is a position in the log as a whole
+ * and is never rebased: segment n holds LSNs n * segmentSize up to
+ * (n + 1) * segmentSize, in a file named after the log file with the
+ * segment number appended.  Records may span segments.
+ * <p>
+ * Truncating the log drops whole segments.  A few of their files are kept
+ * as spares and renamed when a new segment is needed, which saves creating
+ * and growing files while transactions wait on the log.  A spare keeps its
+ * length and its old bytes, which are overwritten as the log grows, so the
+ * length of the last segment is no guide to the end of the log after a
+ * crash: the owner of the log has to find its last complete record and
+ * call setEnd.  Segment numbers, and so LSNs, are never reused, not even
+ * when the log is reset, so the old bytes of a spare never hold a record
+ * that seems to belong where it lies.
+ * <p>
+ * Not thread safe; LogFile only calls it with its monitor held.
+ */
+public class LogSegments {
+
+    /** Default size of a segment, in bytes. */
+    public static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+    /**
+     * System property giving the segment size in bytes, e.g.
+     * -Dsimpledb.logSegmentSize=4194304.
+     */
+    public static final String SEGMENT_SIZE_PROPERTY = "simpledb.logSegmentSize";
+
+    static final int MAX_SPARES = 4;
+    private static final int READ_CHUNK = 64 * 1024;
+    private static final String SPARE_SUFFIX = ".spare";
+
+    private final File base;
+    private final long segmentSize;
+    private long first; // number of the oldest live segment
+    private long end;   // LSN after the last byte written
+
+    private RandomAccessFile tail = null; // segment being appended to
+    private long tailNumber = -1;
+    private RandomAccessFile reading = null; // segment last read from
+    private long readingNumber = -1;
+    // earlier tails with writes that were not forced yet
+    private final ArrayList<RandomAccessFile> unforced = new ArrayList<RandomAccessFile>();
+    private final ArrayDeque<File> spares = new ArrayDeque<File>();
+
+    /**
+     * Open the segments of the log named base, picking up any segments and
+     * spares left by an earlier run.
+     *
+     * @param base the log file the segments are named after
+     * @param segmentSize the size of each segment, in bytes
+     */
+    public LogSegments(File base, long segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+        this.base = base.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+
+        long last = -1;
+        long lastSpare = -1;
+        first = Long.MAX_VALUE;
+        String prefix = this.base.getName() + ".";
+        File[] files = this.base.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.startsWith(prefix))
+                    continue;
+                String rest = name.substring(prefix.length());
+                boolean spare = rest.endsWith(SPARE_SUFFIX);
+                if (spare)
+                    rest = rest.substring(0, rest.length() - SPARE_SUFFIX.length());
+                long n;
+                try {
+                    n = Long.parseLong(rest);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (spare) {
+                    spares.add(f);
+                    lastSpare = Math.max(lastSpare, n);
+                    continue;
+                }
+                first = Math.min(first, n);
+                last = Math.max(last, n);
+            }
+        }
+        if (last < 0) {
+            // start after every segment whose bytes a spare may still hold
+            first = lastSpare + 1;
+            end = getStart();
+        } else {
+            // at most the end; see setEnd
+            end = last * segmentSize + segmentFile(last).length();
+        }
+    }
+
+    /** @return the size of each segment, in bytes */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the LSN of the first byte still kept */
+    public long getStart() {
+        return first * segmentSize;
+    }
+
+    /** @return the LSN after the last byte written */
+    public long getEnd() {
+        return end;
+    }
+
+    /** @return the number of segment files holding the log */
+    public long getNumSegments() {
+        return end == getStart() ? 0 : (end - 1) / segmentSize - first + 1;
+    }
+
+    /** @return the number of spare segment files */
+    public int getNumSpares() {
+        return spares.size();
+    }
+
+    File segmentFile(long n) {
+        return new File(base.getParentFile(), base.getName() + "." + String.format("%012d", n));
+    }
+
+    /**
+     * Append the remaining bytes of buf to the log.
+     *
+     * @param lsn where the bytes go; must be the end of the log
+     */
+    public void write(ByteBuffer buf, long lsn) throws IOException {
+        if (lsn != end)
+            throw new IOException("log segments are append-only: write at " + lsn + ", end is " + end);
+        int limit = buf.limit();
+        while (buf.position() < limit) {
+            long n = end / segmentSize;
+            long offset = end - n * segmentSize;
+            RandomAccessFile f = tail(n);
+            buf.limit((int)Math.min(limit, buf.position() + (segmentSize - offset)));
+            while (buf.hasRemaining()) {
+                int written = f.getChannel().write(buf, offset);
+                offset += written;
+                end += written;
+            }
+            buf.limit(limit);
+        }
+    }
+
+    /**
+     * Read bytes starting at lsn into buf, stopping at the end of a segment.
+     *
+     * @return the number of bytes read, or -1 if lsn is at the end of the log
+     * @throws IOException if lsn was truncated away
+     */
+    public int read(ByteBuffer buf, long lsn) throws IOException {
+        if (lsn < getStart())
+            throw new IOException("LSN " + lsn + " was truncated, the log starts at " + getStart());
+        if (lsn >= end)
+            return -1;
+        long n = lsn / segmentSize;
+        long offset = lsn - n * segmentSize;
+        RandomAccessFile f;
+        if (n == tailNumber) {
+            f = tail;
+        } else {
+            if (n != readingNumber) {
+                if (reading != null)
+                    reading.close();
+                reading = new RandomAccessFile(segmentFile(n), "r");
+                readingNumber = n;
+            }
+            f = reading;
+        }
+        int limit = buf.limit();
+        buf.limit((int)Math.min(limit, buf.position() + Math.min(segmentSize - offset, end - lsn)));
+        int total = 0;
+        try {
+            while (buf.hasRemaining()) {
+                int r = f.getChannel().read(buf, offset);
+                if (r < 0)
+                    break;
+                offset += r;
+                total += r;
+            }
+        } finally {
+            buf.limit(limit);
+        }
+        return total;
+    }
+
+    /** @return a stream reading the log from lsn on */
+    public Reader openReader(long lsn) {
+        return new Reader(lsn);
+    }
+
+    /** Force every byte written so far to disk. */
+    public void force() throws IOException {
+        for (RandomAccessFile f : unforced) {
+            f.getChannel().force(true);
+            f.close();
+        }
+        unforced.clear();
+        if (tail != null)
+            tail.getChannel().force(true);
+    }
+
+    /**
+     * Drop the segments that hold only LSNs below lsn.  The segment holding
+     * lsn is kept, even if lsn is its first byte.
+     */
+    public void truncate(long lsn) throws IOException {
+        long keep = Math.min(lsn, end) / segmentSize;
+        for (long n = first; n < keep; n++)
+            recycle(n);
+        first = Math.max(first, keep);
+    }
+
+    /**
+     * Make lsn the end of the log, dropping the bytes after it.  This is for
+     * opening a log after a crash, when the last segment may be a spare whose
+     * old bytes follow the last record written.  An empty log starts again at
+     * lsn instead.
+     *
+     * @param lsn the new end; not before the start of the log, and not after
+     *   its end unless it is empty
+     */
+    public void setEnd(long lsn) throws IOException {
+        boolean empty = end == getStart();
+        if (lsn < getStart() || (lsn > end && !empty))
+            throw new IllegalArgumentException("cannot end the log at " + lsn
+                    + ", it holds " + getStart() + " to " + end);
+        force();
+        long keep = lsn / segmentSize;
+        if (!empty) {
+            long last = (end - 1) / segmentSize;
+            for (long n = Math.max(first, keep + 1); n <= last; n++) {
+                if (n == tailNumber)
+                    closeTail();
+                recycle(n);
+            }
+        } else {
+            first = keep;
+        }
+        end = lsn;
+    }
+
+    /**
+     * Drop every segment, and start again with an empty log at the start of
+     * the next segment.
+     */
+    public void reset() throws IOException {
+        force();
+        closeTail();
+        if (end > getStart()) {
+            long last = (end - 1) / segmentSize;
+            for (long n = first; n <= last; n++)
+                recycle(n);
+            first = last + 1;
+        }
+        end = getStart();
+    }
+
+    /** Close all segment files. */
+    public void close() throws IOException {
+        force();
+        closeTail();
+        if (reading != null)
+            reading.close();
+        reading = null;
+        readingNumber = -1;
+    }
+
+    private void closeTail() throws IOException {
+        if (tail != null)
+            tail.close();
+        tail = null;
+        tailNumber = -1;
+    }
+
+    // return the file of segment n for appending, creating it from a spare
+    // if needed
+    private RandomAccessFile tail(long n) throws IOException {
+        if (n == tailNumber)
+            return tail;
+        if (tail != null)
+            unforced.add(tail);
+        File f = segmentFile(n);
+        if (!f.exists()) {
+            File spare = spares.poll();
+            if (spare != null && !spare.renameTo(f))
+                spare.delete();
+        }
+        tail = new RandomAccessFile(f, "rw");
+        tailNumber = n;
+        return tail;
+    }
+
+    // retire segment n, keeping its file as a spare if there are few
+    private void recycle(long n) throws IOException {
+        if (n == readingNumber) {
+            reading.close();
+            reading = null;
+            readingNumber = -1;
+        }
+        File f = segmentFile(n);
+        if (spares.size() < MAX_SPARES) {
+            File spare = new File(f.getPath() + SPARE_SUFFIX);
+            if (f.renameTo(spare)) {
+                spares.add(spare);
+                return;
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * A DataInputStream over the log that knows its LSN and can seek.
+     */
+    public class Reader extends DataInputStream {
+        Reader(long lsn) {
+            super(new SegmentInputStream(lsn));
+        }
+
+        /** @return the LSN of the next byte to be read */
+        public long getPosition() {
+            return ((SegmentInputStream)in).position();
+        }
+
+        /** Continue reading at lsn. */
+        public void seek(long lsn) {
+            ((SegmentInputStream)in).seek(lsn);
+        }
+    }
+
+    private class SegmentInputStream extends InputStream {
+        private final ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        private long chunkStart;
+
+        SegmentInputStream(long lsn) {
+            seek(lsn);
+        }
+
+        void seek(long lsn) {
+            chunkStart = lsn;
+            chunk.clear();
+            chunk.limit(0);
+        }
+
+        long position() {
+            return chunkStart + chunk.position();
+        }
+
+        // make sure there are bytes in chunk; false at the end of the log
+        private boolean fill() throws IOException {
+            if (chunk.hasRemaining())
+                return true;
+            chunkStart += chunk.limit();
+            chunk.clear();
+            int n = LogSegments.this.read(chunk, chunkStart);
+            chunk.flip();
+            return n > 0;
+        }
+
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return chunk.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+    }
+}
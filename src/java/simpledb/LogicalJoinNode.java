@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** How the join is computed, as chosen by the JoinOptimizer; null if it
+     * has not chosen yet */
+    public JoinOptimizer.Algorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +67,13 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode computed with algorithm a. */
+    public LogicalJoinNode withAlgorithm(JoinOptimizer.Algorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = a;
+        return j2;
+    }
+    
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
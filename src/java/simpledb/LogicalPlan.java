@@ -216,6 +216,13 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** @return the fully qualified name of the field the result is ordered
+        by, if it is ordered in ascending order, or null otherwise
+    */
+    public String getAscendingOrderByField() {
+        return hasOrderBy && oByAsc ? oByField : null;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -475,7 +482,10 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            // a sort-merge join or B+ tree scan may have ordered it already
+            int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (!(oByAsc && SortMergeJoin.isSorted(node, oByIndex)))
+                node = new OrderBy(oByIndex, oByAsc, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * logical times of its last K references, and the victim is the page whose
+ * K-th most recent reference lies furthest in the past. Pages referenced
+ * fewer than K times are evicted first, oldest reference first, so a single
+ * sequential scan cannot push out pages that are used repeatedly.
+ * <p>
+ * The reference history of evicted pages is retained for a while, so a page
+ * that is re-read soon after eviction keeps its earlier references. Pages
+ * that are discarded rather than evicted are forgotten.
+ * <p>
+ * Hits are queued in an AccessBuffer and applied when the policy next takes
+ * its lock, so lookups of resident pages do not serialize on it.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy extends AbstractReplacementPolicy {
+
+    /** Default number of references remembered per page. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int retainedHistory;
+
+    // everything below is protected by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessBuffer pending = new AccessBuffer(lock, AccessBuffer.DEFAULT_CAPACITY) {
+        protected void apply(PageId pid) {
+            long[] history = resident.get(pid);
+            if (history != null)
+                reference(pid, history);
+        }
+    };
+    private long clock = 0;
+
+    /** Reference history of resident pages, most recent reference last. */
+    private final HashMap<PageId, long[]> resident = new HashMap<PageId, long[]>();
+    /** Reference history of recently evicted pages, in eviction order. */
+    private final LinkedHashMap<PageId, long[]> retained = new LinkedHashMap<PageId, long[]>();
+    /** Resident pages by backward K-distance, largest first. */
+    private final TreeMap<Distance, PageId> order = new TreeMap<Distance, PageId>();
+
+    /**
+     * The position of a resident page in the eviction order: history[0] is
+     * the K-th most recent reference, -1 if there were fewer than K, and ties
+     * are broken by the latest reference. Every reference takes a new tick of
+     * the clock, so no two resident pages share a Distance.
+     */
+    private static class Distance implements Comparable<Distance> {
+        final long kth;
+        final long last;
+
+        Distance(long[] history) {
+            this.kth = history[0];
+            this.last = history[history.length - 1];
+        }
+
+        public int compareTo(Distance o) {
+            if (kth != o.kth)
+                return Long.compare(kth, o.kth);
+            return Long.compare(last, o.last);
+        }
+    }
+
+    public LruKPolicy(int numPages) {
+        this(numPages, DEFAULT_K);
+    }
+
+    /**
+     * @param numPages the number of pages in the BufferPool; the history of
+     *   up to this many evicted pages is retained.
+     * @param k the number of references remembered per page
+     */
+    public LruKPolicy(int numPages, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.retainedHistory = numPages;
+    }
+
+    protected void accessed(PageId pid) {
+        pending.record(pid);
+    }
+
+    protected void admitted(PageId pid) {
+        lock.lock();
+        try {
+            pending.drain();
+            long[] history = resident.get(pid);
+            if (history == null) {
+                history = retained.remove(pid);
+                if (history == null) {
+                    history = new long[k];
+                    Arrays.fill(history, -1);
+                }
+                resident.put(pid, history);
+            }
+            reference(pid, history);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void evicted(PageId pid) {
+        lock.lock();
+        try {
+            pending.drain();
+            long[] history = resident.remove(pid);
+            if (history != null)
+                order.remove(new Distance(history));
+            if (history != null && retainedHistory > 0) {
+                retained.put(pid, history);
+                if (retained.size() > retainedHistory) {
+                    Iterator<PageId> oldest = retained.keySet().iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void discarded(PageId pid) {
+        lock.lock();
+        try {
+            pending.drain();
+            long[] history = resident.remove(pid);
+            if (history != null)
+                order.remove(new Distance(history));
+            retained.remove(pid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a reference to the resident page pid and moves it in the order.
+     * A history that is not in the order yet matches no other page there,
+     * since its latest reference is a tick no other page holds.
+     */
+    private void reference(PageId pid, long[] history) {
+        order.remove(new Distance(history));
+        System.arraycopy(history, 1, history, 0, k - 1);
+        history[k - 1] = clock++;
+        order.put(new Distance(history), pid);
+    }
+
+    /**
+     * Walks the resident pages by backward K-distance, largest first. Each
+     * step looks up the next page after the previous one in the current
+     * order, so pages referenced or evicted meanwhile are seen as they are
+     * now, and a page referenced during the walk may be proposed again.
+     */
+    public Iterator<PageId> victims() {
+        return new Iterator<PageId>() {
+            private Distance cursor;
+            private PageId next;
+
+            public boolean hasNext() {
+                if (next != null)
+                    return true;
+                lock.lock();
+                try {
+                    pending.drain();
+                    Map.Entry<Distance, PageId> e =
+                            cursor == null ? order.firstEntry() : order.higherEntry(cursor);
+                    if (e != null) {
+                        cursor = e.getKey();
+                        next = e.getValue();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                return next != null;
+            }
+
+            public PageId next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                PageId result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
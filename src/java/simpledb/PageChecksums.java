@@ -0,0 +1,260 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Checksums of the pages of a DbFile, so that torn writes and corrupted
+ * bytes are noticed when a page is read instead of being parsed into
+ * garbage.  The DbFile checks a page when it reads it, and around every
+ * write calls prepare and sync before the bytes go out and written after;
+ * page i is the page with page number i.
+ * <p>
+ * The checksums are kept in a side file next to the table, named after it
+ * with ".crc" appended: a magic int, then two sums per page, 8 bytes at
+ * HEADER_SIZE + 8 * i for page i.  A page is intact if its checksum is
+ * either of them.  prepare makes the sum of the new bytes the first one
+ * and keeps the sum of the bytes on disk as the second, and sync forces
+ * both to disk before the page is written, so a write that a crash cuts
+ * off or loses leaves a page that still checks out, while a torn one does
+ * not.  The second sum is only known to be on disk once the table file is
+ * forced, so prepare forces it before it replaces the sums of a page
+ * written since.
+ * <p>
+ * Page formats are unchanged, so checksums can be turned on for an
+ * existing table; a page without a checksum yet, shown by two 0s, is
+ * trusted and stamped the first time it is read.  A DbFile that writes a
+ * page while checksums are off deletes the side file first (see drop), so
+ * that it never holds sums of bytes that are gone.
+ * <p>
+ * A page that fails its check is repaired from the log where possible (see
+ * LogFile.replayPage), and counted either way.  The checksum is CRC32C,
+ * which the JVM computes with CPU instructions, or CRC32 on JVMs older than
+ * Java 9.
+ */
+public class PageChecksums {
+
+    /** Bytes before the sums in the side file. */
+    static final int HEADER_SIZE = 4;
+    private static final int MAGIC = 0x43524332; // "CRC2"
+
+    private static final Constructor<? extends Checksum> CRC = crcConstructor();
+    private static final ThreadLocal<Checksum> crc = new ThreadLocal<Checksum>() {
+        protected Checksum initialValue() {
+            try {
+                return CRC.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private static Constructor<? extends Checksum> crcConstructor() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException e) {
+            try {
+                return CRC32.class.getConstructor();
+            } catch (NoSuchMethodException e2) {
+                throw new RuntimeException(e2);
+            }
+        }
+    }
+
+    private final File sumFile;
+    private FileChannel channel = null;
+    private int[] sums = null;       // two per page, loaded on first use
+    private final BitSet known = new BitSet();    // first sum is of the bytes we wrote
+    private final BitSet unforced = new BitSet(); // written since the table was forced
+    private boolean unsynced = false;             // sums written since the last sync
+    private long corruptions = 0;
+
+    /**
+     * @param table the file of the table whose pages are checked
+     */
+    public PageChecksums(File table) {
+        this.sumFile = new File(table.getPath() + ".crc");
+    }
+
+    /**
+     * Delete the side file of the table in file f, whose pages are about
+     * to be written without checksums.
+     */
+    public static void drop(File f) {
+        new File(f.getPath() + ".crc").delete();
+    }
+
+    /** @return the side file the checksums are kept in */
+    public File getFile() {
+        return sumFile;
+    }
+
+    /** @return the number of pages that failed their check so far */
+    public synchronized long getCorruptions() {
+        return corruptions;
+    }
+
+    /** @return the checksum of the remaining bytes of page */
+    public static int checksum(ByteBuffer page) {
+        Checksum c = crc.get();
+        c.reset();
+        if (page.hasArray()) {
+            c.update(page.array(), page.arrayOffset() + page.position(), page.remaining());
+        } else {
+            byte[] bytes = new byte[page.remaining()];
+            page.duplicate().get(bytes);
+            c.update(bytes, 0, bytes.length);
+        }
+        return (int)c.getValue();
+    }
+
+    /**
+     * Record the checksum of page, which is about to be written as page i
+     * at offset of file, next to the one of the bytes there now.  Call sync
+     * before writing the page, and written after.
+     */
+    synchronized void prepare(int i, byte[] page, DbFileChannel file, long offset)
+            throws IOException {
+        load();
+        int sum = checksum(ByteBuffer.wrap(page));
+        int old;
+        if (unforced.get(i)) {
+            // the bytes we wrote last may still be only in memory
+            file.force();
+            known.or(unforced);
+            unforced.clear();
+        }
+        if (known.get(i)) {
+            old = sums[2 * i];
+        } else {
+            // written before we were loaded; vouch for what is there if it
+            // checks out
+            byte[] onDisk = new byte[page.length];
+            old = sum;
+            if (file.read(onDisk, offset)) {
+                int s = checksum(ByteBuffer.wrap(onDisk));
+                if (matches(i, s) || (get(i, 0) == 0 && get(i, 1) == 0))
+                    old = s;
+            }
+        }
+        set(i, sum, old);
+    }
+
+    /** Force the sums recorded by prepare to disk. */
+    synchronized void sync() throws IOException {
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /** Note that page i has been written as prepared. */
+    synchronized void written(int i) {
+        known.set(i);
+        unforced.set(i);
+    }
+
+    /** Close the side file; it is opened again on the next write. */
+    synchronized void close() throws IOException {
+        sync();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Check the bytes of page pid read from disk.  A page that fails is
+     * counted and its history replayed from the log onto a copy of it.
+     *
+     * @return null if the page is intact, or the repaired bytes, which the
+     *   caller should write back
+     * @throws IOException if the page is corrupt and the log cannot repair it
+     */
+    public byte[] check(PageId pid, ByteBuffer page) throws IOException {
+        int i = pid.pageNumber();
+        int sum = checksum(page);
+        synchronized (this) {
+            load();
+            if (matches(i, sum))
+                return null;
+            if (get(i, 0) == 0 && get(i, 1) == 0) {
+                set(i, sum, sum);
+                return null;
+            }
+            corruptions++;
+            known.clear(i); // the bytes on disk are not the ones we wrote
+            unforced.clear(i);
+        }
+        byte[] image = new byte[page.remaining()];
+        page.duplicate().get(image);
+        Database.getLogFile().replayPage(pid, image);
+        synchronized (this) {
+            if (!matches(i, checksum(ByteBuffer.wrap(image))))
+                throw new IOException("page " + i + " of table " + pid.getTableId()
+                        + " fails its checksum and the log cannot repair it");
+        }
+        return image;
+    }
+
+    // true if sum is one of the sums of page i
+    private boolean matches(int i, int sum) {
+        return get(i, 0) == sum || get(i, 1) == sum;
+    }
+
+    private int get(int i, int which) {
+        return 2 * i + which < sums.length ? sums[2 * i + which] : 0;
+    }
+
+    private void set(int i, int sum, int old) throws IOException {
+        if (2 * i + 1 >= sums.length)
+            sums = Arrays.copyOf(sums, Math.max(2 * i + 2, sums.length * 2));
+        if (sums[2 * i] == sum && sums[2 * i + 1] == old)
+            return;
+        sums[2 * i] = sum;
+        sums[2 * i + 1] = old;
+        if (channel == null) {
+            channel = new RandomAccessFile(sumFile, "rw").getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(0, MAGIC);
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putInt(0, sum);
+        buf.putInt(4, old);
+        while (buf.hasRemaining())
+            channel.write(buf, HEADER_SIZE + 8L * i + buf.position());
+        unsynced = true;
+    }
+
+    private void load() throws IOException {
+        if (sums != null)
+            return;
+        sums = new int[0];
+        if (!sumFile.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sumFile)));
+        boolean ours;
+        try {
+            ours = sumFile.length() >= HEADER_SIZE && in.readInt() == MAGIC;
+            if (ours) {
+                sums = new int[(int)((sumFile.length() - HEADER_SIZE) / 8) * 2];
+                for (int i = 0; i < sums.length; i++)
+                    sums[i] = in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+        if (!ours)
+            sumFile.delete(); // an older format; start again
+    }
+}
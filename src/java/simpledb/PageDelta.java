@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The bytes of a page changed by one update, as logged in an UPDATE record:
+ * a list of byte ranges with their contents before and after the update.
+ * <p>
+ * Applying a delta overwrites its ranges, so replaying it more than once, or
+ * onto a page that already has it, is harmless.
+ */
+public class PageDelta {
+
+    // changed ranges with fewer unchanged bytes than this between them are
+    // merged, since every range costs two ints in the log
+    private static final int MERGE_GAP = 8;
+
+    private final int pageSize;
+    private final int[] offsets;
+    private final int[] lengths;
+    // the contents of all ranges, back to back
+    private final byte[] before;
+    private final byte[] after;
+
+    private PageDelta(int pageSize, int[] offsets, int[] lengths, byte[] before, byte[] after) {
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta between two images of a page.
+     *
+     * @throws IllegalArgumentException if the images differ in size
+     */
+    public static PageDelta diff(byte[] before, byte[] after) {
+        if (before.length != after.length)
+            throw new IllegalArgumentException("page images differ in size: "
+                    + before.length + " and " + after.length);
+        int n = after.length;
+        int[] offsets = new int[4];
+        int[] lengths = new int[4];
+        int count = 0;
+        int changed = 0;
+        int i = 0;
+        while (i < n) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            for (int j = end; j < n && j - end < MERGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = i;
+            lengths[count] = end - i;
+            changed += end - i;
+            count++;
+            i = end;
+        }
+
+        byte[] oldBytes = new byte[changed];
+        byte[] newBytes = new byte[changed];
+        int pos = 0;
+        for (int r = 0; r < count; r++) {
+            System.arraycopy(before, offsets[r], oldBytes, pos, lengths[r]);
+            System.arraycopy(after, offsets[r], newBytes, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageDelta(n, Arrays.copyOf(offsets, count), Arrays.copyOf(lengths, count),
+                oldBytes, newBytes);
+    }
+
+    /** @return true if the two images were identical */
+    public boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    /** @return the size of the page images */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return the number of changed byte ranges */
+    public int getNumRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of bytes covered by the changed ranges */
+    public int getChangedBytes() {
+        return after.length;
+    }
+
+    /** Overwrite the changed ranges of page with their new contents. */
+    public void redo(byte[] page) {
+        apply(after, page);
+    }
+
+    /** Overwrite the changed ranges of page with their old contents. */
+    public void undo(byte[] page) {
+        apply(before, page);
+    }
+
+    private void apply(byte[] contents, byte[] page) {
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(contents, pos, page, offsets[r], lengths[r]);
+            pos += lengths[r];
+        }
+    }
+
+    /**
+     * Serialize this delta: the page size, the number of ranges, the offset
+     * and length of each range, then the old and the new contents.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(lengths[r]);
+        }
+        out.write(before);
+        out.write(after);
+    }
+
+    /** Read a delta written by writeTo. */
+    public static PageDelta readFrom(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int count = in.readInt();
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        int changed = 0;
+        for (int r = 0; r < count; r++) {
+            offsets[r] = in.readInt();
+            lengths[r] = in.readInt();
+            changed += lengths[r];
+        }
+        byte[] before = new byte[changed];
+        byte[] after = new byte[changed];
+        in.readFully(before);
+        in.readFully(after);
+        return new PageDelta(pageSize, offsets, lengths, before, after);
+    }
+
+    /**
+     * Read the ranges of a delta written by writeTo, but not its contents.
+     *
+     * @return the number of bytes of old and new contents that follow, or -1
+     *   if the ranges do not fit in a page, so what was read is no delta
+     */
+    static long readLength(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int count = in.readInt();
+        if (pageSize <= 0 || count < 0 || count > pageSize)
+            return -1;
+        long changed = 0;
+        for (int r = 0; r < count; r++) {
+            int offset = in.readInt();
+            int length = in.readInt();
+            if (offset < 0 || length < 0 || (long)offset + length > pageSize)
+                return -1;
+            changed += length;
+        }
+        return changed > pageSize ? -1 : 2 * changed;
+    }
+}
@@ -366,7 +366,8 @@ public class Parser {
                     IntField f = new IntField(new Integer(zc.getValue()));
                     t.setField(i, f);
                 } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    if (td.getFieldType(i) != Type.STRING_TYPE
+                            && td.getFieldType(i) != Type.VARCHAR_TYPE) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
                                 + " is a string, expected an integer.");
@@ -0,0 +1,139 @@
+package simpledb;
+
+/**
+ * ReadAhead watches the pages one iterator fetches, and once it sees them
+ * come in order has the BufferPool read the next ones in the background,
+ * so that the iterator finds them resident instead of waiting for each
+ * read in turn.  Heap file pages come in page number order; B+ tree leaves
+ * come along their right sibling pointers, so a leaf has to be read before
+ * the one after it is known, and a single background task follows the
+ * chain.
+ * <p>
+ * How far ahead to read follows how fast the iterator uses up pages: enough
+ * pages to last it while the reads ahead of it finish, which is the time a
+ * read takes over the time between the pages it fetches, with room to
+ * spare.  The window also grows with the length of the run of pages seen
+ * in order, so short runs read little extra, and never exceeds
+ * BufferPool#getReadAhead.  A scan that reads through a ScanRing has its
+ * pages read into the ring, at most half a ring ahead.
+ * <p>
+ * Not thread safe; each iterator has its own.
+ *
+ * @see BufferPool#getPrefetchHitCount
+ * @see BufferPool#getPrefetchWasteCount
+ */
+class ReadAhead {
+
+    /** Pages that have to come in order before any is read ahead. */
+    static final int MIN_RUN = 2;
+
+    private final ScanRing ring;
+
+    private int run = 0;            // pages fetched in order so far
+    private PageId expected = null; // the page that continues the run
+    private long lastFetch = 0;     // when the previous page was fetched
+    private long fetchNanos = 0;    // moving average of the time between pages
+
+    // heap files: the highest page number read ahead
+    private int frontier = -1;
+
+    // B+ trees: the leaves of the run are numbered from its start
+    private int leafNo = 0;
+    private int chainEnd = 0;       // the number of the last leaf asked for
+    private volatile boolean chasing = false;
+    private volatile boolean closed = false;
+
+    /** Read ahead into the pool. */
+    public ReadAhead() {
+        this(null);
+    }
+
+    /** Read ahead into ring, or the pool if it is null. */
+    public ReadAhead(ScanRing ring) {
+        this.ring = ring;
+    }
+
+    /** Note a fetch of pid, and count it as part of the run if it continues it. */
+    private void fetched(PageId pid) {
+        long now = System.nanoTime();
+        if (pid.equals(expected)) {
+            run++;
+            long gap = now - lastFetch;
+            fetchNanos = fetchNanos == 0 ? gap : fetchNanos - (fetchNanos >> 3) + (gap >> 3);
+        } else {
+            run = 0;
+            fetchNanos = 0;
+            frontier = -1;
+            leafNo = 0;
+            chainEnd = 0;
+        }
+        lastFetch = now;
+    }
+
+    /** @return how many pages past the current one should be read */
+    private int window() {
+        int max = Database.getBufferPool().getReadAhead();
+        if (ring != null)
+            max = Math.min(max, ring.capacity() / 2);
+        if (run < MIN_RUN || max == 0)
+            return 0;
+        long need = max;
+        if (fetchNanos > 0)
+            need = 2 * (Database.getBufferPool().getReadNanos() / fetchNanos + 1);
+        return (int) Math.min(Math.min(need, 2L * run), max);
+    }
+
+    /**
+     * The iterator is about to fetch page pid of a heap file with numPages
+     * pages.
+     */
+    public void heapPage(HeapPageId pid, int numPages) {
+        fetched(pid);
+        expected = new HeapPageId(pid.getTableId(), pid.pageNumber() + 1);
+        int n = window();
+        if (n == 0)
+            return;
+        BufferPool bp = Database.getBufferPool();
+        frontier = Math.max(frontier, pid.pageNumber());
+        int last = Math.min(pid.pageNumber() + n, numPages - 1);
+        while (frontier < last)
+            bp.prefetchPage(new HeapPageId(pid.getTableId(), ++frontier), ring);
+    }
+
+    /** The iterator has fetched leaf. */
+    public void leafPage(BTreeLeafPage leaf) {
+        fetched(leaf.getId());
+        final BTreePageId next = leaf.getRightSiblingId();
+        expected = next;
+        leafNo++;
+        final int n = window();
+        // start over from here once the last chase ran out of reads
+        if (n == 0 || next == null || chasing || chainEnd - leafNo >= n / 2 + 1)
+            return;
+        chasing = true;
+        chainEnd = leafNo + n;
+        boolean started = Database.getBufferPool().readAhead(new Runnable() {
+            public void run() {
+                try {
+                    BufferPool bp = Database.getBufferPool();
+                    BTreePageId pid = next;
+                    for (int i = 0; i < n && pid != null && !closed; i++) {
+                        Page p = bp.prefetchNow(pid);
+                        if (!(p instanceof BTreeLeafPage))
+                            break;
+                        pid = ((BTreeLeafPage) p).getRightSiblingId();
+                    }
+                } finally {
+                    chasing = false;
+                }
+            }
+        });
+        if (!started)
+            chasing = false;
+    }
+
+    /** The iterator is done; stop reading ahead of it. */
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give
+ * up when it needs a free frame.
+ * <p>
+ * The BufferPool reports every lookup to the policy, either as a hit on a
+ * resident page or as a miss that brought a new page into the pool. When a
+ * frame is needed, the BufferPool walks {@link #victims()} and evicts the
+ * first candidate it is allowed to, then reports it via
+ * {@link #recordEviction}. Candidates the BufferPool skips stay resident.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @see BufferPool#getReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /** Record a lookup of pid that found the page resident in the pool. */
+    public void recordHit(PageId pid);
+
+    /** Record that pid was not resident and has now been added to the pool. */
+    public void recordMiss(PageId pid);
+
+    /** Record that pid was evicted from the pool to make room. */
+    public void recordEviction(PageId pid);
+
+    /**
+     * Forget about pid without counting an eviction, e.g. when the page is
+     * discarded by the recovery manager or a B+ tree file. Unlike an
+     * eviction, this leaves no history of the page behind.
+     */
+    public void remove(PageId pid);
+
+    /**
+     * @return the resident pages in the order this policy would like to
+     *   evict them. The iterator may be lazy, and may update the policy's
+     *   state (e.g. clear reference bits) as it advances.
+     */
+    public Iterator<PageId> victims();
+
+    /** @return the number of lookups that found the page resident */
+    public long getHitCount();
+
+    /** @return the number of lookups that had to read the page from disk */
+    public long getMissCount();
+
+    /** @return the number of pages evicted to make room for others */
+    public long getEvictionCount();
+}
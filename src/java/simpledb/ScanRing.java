@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A small private ring of pages for a scan that reads many pages once, such
+ * as a sequential scan of a table much larger than the BufferPool or the
+ * scans that compute TableStats.  Pages the scan finds in the pool are used
+ * from there as usual, but the pages it has to read go into its ring
+ * rather than the pool, each taking the place of the one read longest ago.
+ * Such a scan therefore leaves the pages other queries work with in the
+ * pool.
+ * <p>
+ * A page in a ring moves to the pool when a request that does not go
+ * through a ring asks for it.  Other ring scans use it where it is.  A ring
+ * belongs to one transaction, and its pages are dropped when that
+ * transaction completes or the scan closes.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, ScanRing)
+ */
+public class ScanRing {
+
+    /** Pages in a ring, unless the constructor is told otherwise. */
+    public static final int DEFAULT_PAGES = 16;
+
+    private final TransactionId tid;
+    private final PageId[] slots;
+    private final HashMap<PageId,Page> pages;
+    private int next = 0; // the slot to fill next
+
+    /**
+     * @param tid the transaction of the scan
+     */
+    public ScanRing(TransactionId tid) {
+        this(tid, DEFAULT_PAGES);
+    }
+
+    /**
+     * @param tid the transaction of the scan
+     * @param numPages the number of pages the ring holds, at least 2
+     */
+    public ScanRing(TransactionId tid, int numPages) {
+        if (numPages < 2)
+            throw new IllegalArgumentException("a ring needs at least 2 pages");
+        this.tid = tid;
+        this.slots = new PageId[numPages];
+        this.pages = new HashMap<PageId,Page>();
+    }
+
+    /** @return the transaction of the scan */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /** @return the number of pages the ring holds */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /** @return the page with id pid, or null if it is not in the ring */
+    public synchronized Page get(PageId pid) {
+        return pages.get(pid);
+    }
+
+    /**
+     * Add page to the ring in place of the page added longest ago.
+     *
+     * @return the id of the page that left the ring, or null
+     */
+    synchronized PageId add(Page page) {
+        PageId pid = page.getId();
+        if (pages.put(pid, page) != null)
+            return null;
+        PageId dropped = slots[next];
+        if (dropped != null)
+            pages.remove(dropped);
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return dropped;
+    }
+
+    /** Take pid out of the ring, returning the page or null. */
+    synchronized Page remove(PageId pid) {
+        Page page = pages.remove(pid);
+        if (page != null) {
+            for (int i = 0; i < slots.length; i++) {
+                if (pid.equals(slots[i]))
+                    slots[i] = null;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Drop every page.
+     *
+     * @return the ids of the pages dropped
+     */
+    synchronized List<PageId> clear() {
+        List<PageId> dropped = new ArrayList<PageId>(pages.keySet());
+        pages.clear();
+        Arrays.fill(slots, null);
+        return dropped;
+    }
+
+    /** @return the number of pages in the ring */
+    public synchronized int size() {
+        return pages.size();
+    }
+}
@@ -35,11 +35,40 @@ public class SeqScan implements DbIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, isLargeTable(tableid));
+    }
+
+    /**
+     * Creates a sequential scan that, if ring is true, reads the pages it
+     * does not find in the buffer pool into a ScanRing of its own, leaving
+     * the pool to other queries.  Other constructors do so for heap files
+     * that do not fit in the pool (see BufferPool#isLargeScan).
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param ring
+     *            whether to read the table through a ScanRing; only heap
+     *            files can be
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, boolean ring) {
         this.alias=tableAlias;
         this.tid=tid;
         this.tableid=tableid;
         this.file=Database.getCatalog().getDatabaseFile(this.tableid);
-        this.iter=file.iterator(this.tid);
+        if (ring && file instanceof HeapFile)
+            this.iter=((HeapFile) file).iterator(this.tid, new ScanRing(this.tid));
+        else
+            this.iter=file.iterator(this.tid);
+    }
+
+    private static boolean isLargeTable(int tableid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        return file instanceof HeapFile
+                && Database.getBufferPool().isLargeScan(((HeapFile) file).numPages());
     }
 
     /**
@@ -48,7 +77,7 @@ public class SeqScan implements DbIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(this.tableid);
     }
 
     /**
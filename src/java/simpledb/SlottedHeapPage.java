@@ -0,0 +1,329 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A page of a HeapFile whose tuples vary in size, because the table has
+ * VARCHAR_TYPE fields.  Each tuple takes only the bytes its fields need.
+ * <p>
+ * The page starts with the number of entries in its slot directory and
+ * the number of bytes of tuple data, followed by the directory itself,
+ * which holds the offset and length of the tuple in each slot (offset 0
+ * for an empty slot).  Tuples are packed from the end of the page towards
+ * the directory.  All of these are unsigned 2-byte numbers, so pages must
+ * be smaller than 64KB.  A page of zeroes is an empty page.
+ * <p>
+ * A tuple keeps its slot, and so its RecordId, for as long as it is on the
+ * page.  Deleting it leaves a hole in the tuple data, which is squeezed out
+ * when an insert needs the space.
+ * <p>
+ * Like HeapPage, the page borrows the bytes it is built from, and copies
+ * them on its first change.
+ *
+ * @see HeapPage
+ * @see HeapFile
+ */
+public class SlottedHeapPage implements TuplePage {
+
+    static final int HEADER_SIZE = 4;
+    static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int maxTupleSize;
+
+    // the bytes of the page; read-only until owned is set
+    private ByteBuffer data;
+    private boolean owned = false;
+
+    // the before image, or null if the page is unchanged since it was
+    // read or since setBeforeImage, in which case data is the before image
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private int numSlots;   // entries in the slot directory
+    private int dataStart;  // offset of the lowest byte of tuple data
+    private int liveBytes;  // bytes taken by tuples, not counting holes
+    private int emptySlots; // directory entries without a tuple
+
+    private TransactionId dirtyId = null;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * The page uses data without copying it, so the caller must not change
+     * it afterwards.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a SlottedHeapPage from bytes that stay unchanged while the page
+     * is clean, such as a slice of a memory-mapped file.
+     */
+    public SlottedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /** Create a page of a table that is not in the catalog (yet). */
+    SlottedHeapPage(HeapPageId id, TupleDesc td, ByteBuffer data) {
+        this.pid = id;
+        this.td = td;
+        this.maxTupleSize = td.getSize();
+        this.data = data;
+        this.numSlots = data.getChar(0);
+        this.dataStart = BufferPool.getPageSize() - data.getChar(2);
+        for (int i = 0; i < numSlots; i++) {
+            if (offset(i) == 0)
+                emptySlots++;
+            else
+                liveBytes += length(i);
+        }
+    }
+
+    private int offset(int slot) {
+        return data.getChar(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int length(int slot) {
+        return data.getChar(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        data.putChar(HEADER_SIZE + slot * SLOT_SIZE, (char)offset);
+        data.putChar(HEADER_SIZE + slot * SLOT_SIZE + 2, (char)length);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedHeapPage getBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData != null)
+                return new SlottedHeapPage(pid, td, ByteBuffer.wrap(oldData));
+            // unchanged, so the before image shares our bytes until one of
+            // the two pages is changed
+            owned = false;
+            return new SlottedHeapPage(pid, td, data);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        oldData = null;
+        owned = false;
+        }
+    }
+
+    /**
+     * Make data an array of this page's own before changing it.  The bytes
+     * it borrowed become the before image if there is none yet.
+     */
+    private void own() {
+        synchronized(oldDataLock)
+        {
+        if (owned)
+            return;
+        byte[] copy = getPageData();
+        if (oldData == null) {
+            if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == copy.length)
+                oldData = data.array();
+            else
+                oldData = copy.clone(); // a mapped file changes when the page is written
+        }
+        data = ByteBuffer.wrap(copy);
+        owned = true;
+        }
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    private Tuple readTuple(int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = offset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen(data, offset);
+        }
+        return t;
+    }
+
+    public Field getField(int slotId, int fieldNo) {
+        if (!isSlotUsed(slotId))
+            return null;
+        int offset = offset(slotId);
+        for (int j=0; j<fieldNo; j++)
+            offset += td.getFieldType(j).getLen(data, offset);
+        return td.getFieldType(fieldNo).parse(data, offset);
+    }
+
+    public byte[] getPageData() {
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.position(0);
+        src.get(copy);
+        return copy;
+    }
+
+    // the bytes t is stored as
+    private byte[] encode(Tuple t) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(maxTupleSize);
+        DataOutputStream dos = new DataOutputStream(bytes);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                td.getFieldType(j).serialize(t.getField(j), dos);
+        } catch (IOException e) {
+            // cannot happen, the stream writes to memory
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        if (!(this.td.equals(t.getTupleDesc()))) throw new DbException("TupleDesc is dismatch");
+        byte[] bytes = encode(t);
+        int slot = emptySlots > 0 ? firstEmptySlot() : numSlots;
+        int directoryEnd = HEADER_SIZE + Math.max(numSlots, slot + 1) * SLOT_SIZE;
+        if (directoryEnd + liveBytes + bytes.length > BufferPool.getPageSize())
+            throw new DbException("Page is full");
+        own();
+        if (dataStart - bytes.length < directoryEnd)
+            compact();
+        dataStart -= bytes.length;
+        ByteBuffer out = data.duplicate();
+        out.position(dataStart);
+        out.put(bytes);
+        if (slot == numSlots) {
+            numSlots++;
+            data.putChar(0, (char)numSlots);
+        } else {
+            emptySlots--;
+        }
+        setSlot(slot, dataStart, bytes.length);
+        liveBytes += bytes.length;
+        data.putChar(2, (char)(BufferPool.getPageSize() - dataStart));
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    private int firstEmptySlot() {
+        for (int i = 0; i < numSlots; i++) {
+            if (offset(i) == 0)
+                return i;
+        }
+        throw new IllegalStateException("no empty slot");
+    }
+
+    // move the tuples to the end of the page, squeezing out the holes
+    // deletes left; the slots keep their tuples
+    private void compact() {
+        byte[] page = new byte[BufferPool.getPageSize()];
+        int directoryEnd = HEADER_SIZE + numSlots * SLOT_SIZE;
+        ByteBuffer src = data.duplicate();
+        src.position(0);
+        src.get(page, 0, directoryEnd);
+        int end = page.length;
+        for (int i = 0; i < numSlots; i++) {
+            int offset = offset(i);
+            if (offset == 0)
+                continue;
+            int length = length(i);
+            end -= length;
+            src.position(offset);
+            src.get(page, end, length);
+            page[HEADER_SIZE + i * SLOT_SIZE] = (byte)(end >> 8);
+            page[HEADER_SIZE + i * SLOT_SIZE + 1] = (byte)end;
+        }
+        data = ByteBuffer.wrap(page);
+        dataStart = end;
+        data.putChar(2, (char)(page.length - dataStart));
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        PageId pid = t.getRecordId().getPageId();
+        int num = t.getRecordId().tupleno();
+        if (!(pid.equals(this.pid))) throw new DbException("No such tuple");
+        else if (num == -1) throw new DbException("Tuple has already been deleted");
+        else if (!(this.isSlotUsed(num))) throw new DbException("slot is empty");
+        own();
+        int offset = offset(num);
+        int length = length(num);
+        // holes are all zeroes, like free space
+        for (int i = 0; i < length; i++)
+            data.put(offset + i, (byte)0);
+        setSlot(num, 0, 0);
+        emptySlots++;
+        liveBytes -= length;
+        t.setRecordId(new RecordId(pid, -1));
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) this.dirtyId = tid;
+        else dirtyId = null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyId;
+    }
+
+    /**
+     * Returns the number of tuples of the largest size td allows that still
+     * fit on this page, counting the space that compaction would free.
+     */
+    public int getNumEmptySlots() {
+        int free = BufferPool.getPageSize() - HEADER_SIZE - numSlots * SLOT_SIZE - liveBytes;
+        if (free <= 0)
+            return 0;
+        int reused = Math.min(emptySlots, free / maxTupleSize);
+        return reused + (free - reused * maxTupleSize) / (maxTupleSize + SLOT_SIZE);
+    }
+
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && offset(i) != 0;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     * this iterator throws an UnsupportedOperationException).  It returns the
+     * tuples in the slots used when it was created that are still there.
+     */
+    public Iterator<Tuple> iterator() {
+        final int[] used = new int[numSlots - emptySlots];
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (offset(i) != 0)
+                used[n++] = i;
+        }
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < used.length && !isSlotUsed(used[from]))
+                    from++;
+                return from;
+            }
+
+            public boolean hasNext() {
+                return next < used.length;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(used[next]);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
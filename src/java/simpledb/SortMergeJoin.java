@@ -0,0 +1,273 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The Join operator implements the relational join operation.
+ * <p>
+ * SortMergeJoin joins its children in ascending order of their join
+ * fields, so it returns tuples in order of the left join field.  A child
+ * that already comes in that order, such as a scan of a B+ tree file on its
+ * key (see isSorted), is read as it is; any other child is sorted with an
+ * ExternalSort that may take memoryPages pages of memory.
+ * <p>
+ * An equality join merges the two sides, holding in memory the right
+ * tuples with the key of the current left tuple.  A range join (<, <=, >,
+ * >=) reads the matches of each left tuple from the sorted right side,
+ * which is kept in memory or, if it does not fit, merged into one spilled
+ * run: with > or >= the matches are the right tuples before the first one
+ * that fails the predicate, and with < or <= they are the right tuples from
+ * the first one that satisfies it on.  That first match never moves back
+ * as the left key grows, so each left tuple seeks straight to the first
+ * match of the one before and steps on from there.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child1, child2;
+    private final int memoryPages;
+
+    private transient ExternalSort left = null, right = null;
+    private transient TupleDesc td = null;       // of the tuples returned
+    private transient Tuple leftTuple = null;    // the left tuple being matched
+    // equality joins
+    private transient ArrayList<Tuple> group = null; // right tuples with the key of leftTuple
+    private transient int groupPos = 0;
+    private transient Tuple nextRight = null;    // the right tuple after the group
+    // range joins
+    private transient int skip = 0;              // right tuples no later left tuple matches
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, JoinOptimizer.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor for a join whose sorts may each take memoryPages pages'
+     * worth of tuples before they spill runs to disk.
+     *
+     * @param p
+     *            The predicate to use to join the children; not NOT_EQUALS
+     *            or LIKE
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryPages
+     *            The pages of tuples to sort in memory at a time, at least 1
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int memoryPages) {
+        if (!isMergeable(p.getOperator()))
+            throw new IllegalArgumentException("a sort-merge join cannot join on " + p.getOperator());
+        if (memoryPages < 1)
+            throw new IllegalArgumentException("a sort-merge join needs at least 1 page of memory");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryPages = memoryPages;
+    }
+
+    /** @return true if a sort-merge join can join on op */
+    public static boolean isMergeable(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return true if the tuples of it come in ascending order of the given
+     *   field: it is a scan of a B+ tree file keyed on the field, perhaps
+     *   under Filters, an ascending OrderBy on the field, or a SortMergeJoin
+     *   on the field
+     */
+    public static boolean isSorted(DbIterator it, int field) {
+        if (it instanceof Filter)
+            return isSorted(((Filter) it).getChildren()[0], field);
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            JoinPredicate jp = j.getJoinPredicate();
+            return field == jp.getField1()
+                    || (jp.getOperator() == Predicate.Op.EQUALS
+                        && field == j.child1.getTupleDesc().numFields() + jp.getField2());
+        }
+        DbFile f;
+        try {
+            if (it instanceof SeqScan)
+                f = Database.getCatalog().getDatabaseFile(
+                        Database.getCatalog().getTableId(((SeqScan) it).getTableName()));
+            else if (it instanceof BTreeScan)
+                f = Database.getCatalog().getDatabaseFile(
+                        Database.getCatalog().getTableId(((BTreeScan) it).getTableName()));
+            else
+                return false;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    /** @return the pages of tuples each sort may hold */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk since the join was
+     *   opened
+     */
+    public int getSpilledRuns() {
+        return (left == null ? 0 : left.getRuns()) + (right == null ? 0 : right.getRuns());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        child2.open();
+        td = getTupleDesc();
+        left = new ExternalSort(child1, p.getField1(), memoryPages,
+                isSorted(child1, p.getField1()));
+        // a range join reads the right side from the middle once per left
+        // tuple, so it is kept in a seekable sort even when it comes in order
+        boolean equi = p.getOperator() == Predicate.Op.EQUALS;
+        right = new ExternalSort(child2, p.getField2(), memoryPages,
+                equi && isSorted(child2, p.getField2()), !equi);
+        left.open();
+        right.open();
+        start();
+    }
+
+    /** Start the merge from the first tuple of each side. */
+    private void start() throws DbException, TransactionAbortedException {
+        leftTuple = null;
+        group = new ArrayList<Tuple>();
+        groupPos = 0;
+        nextRight = right.hasNext() ? right.next() : null;
+        skip = 0;
+    }
+
+    public void close() {
+        super.close();
+        if (left != null)
+            left.delete();
+        if (right != null)
+            right.delete();
+        child1.close();
+        child2.close();
+        leftTuple = null;
+        group = null;
+        nextRight = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        start();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Logically, this is the next tuple in r1 cross r2 that
+     * satisfies the join predicate, in order of the left join field.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return fetchEqual();
+        return fetchRange();
+    }
+
+    private Tuple fetchEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (leftTuple != null && groupPos < group.size())
+                return new Tuple(td, leftTuple, group.get(groupPos++));
+            if (!left.hasNext())
+                return null;
+            Tuple t1 = left.next();
+            Field key = t1.getField(p.getField1());
+            groupPos = 0;
+            if (!group.isEmpty()
+                    && key.compare(Predicate.Op.EQUALS, group.get(0).getField(p.getField2()))) {
+                leftTuple = t1;
+                continue;
+            }
+            group.clear();
+            while (nextRight != null
+                    && nextRight.getField(p.getField2()).compare(Predicate.Op.LESS_THAN, key))
+                nextRight = right.hasNext() ? right.next() : null;
+            while (nextRight != null
+                    && nextRight.getField(p.getField2()).compare(Predicate.Op.EQUALS, key)) {
+                group.add(nextRight);
+                nextRight = right.hasNext() ? right.next() : null;
+            }
+            leftTuple = t1;
+        }
+    }
+
+    private Tuple fetchRange() throws TransactionAbortedException, DbException {
+        // with > or >= the matches of a left tuple come first on the right
+        boolean prefix = p.getOperator() == Predicate.Op.GREATER_THAN
+                || p.getOperator() == Predicate.Op.GREATER_THAN_OR_EQ;
+        while (true) {
+            if (leftTuple != null && nextRight != null) {
+                Tuple t2 = nextRight;
+                nextRight = right.hasNext() ? right.next() : null;
+                if (p.filter(leftTuple, t2))
+                    return new Tuple(td, leftTuple, t2);
+                if (prefix)
+                    leftTuple = null;
+                else
+                    skip++;
+                continue;
+            }
+            if (!left.hasNext())
+                return null;
+            leftTuple = left.next();
+            right.seek(prefix ? 0 : skip);
+            nextRight = right.hasNext() ? right.next() : null;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {child1, child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+}
@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A temporary file of tuples that an operator spills when its input does
+ * not fit in memory, such as a partition of a HashEquiJoin.  Tuples are
+ * appended, then read back in the order they were added, as often as
+ * needed; the file is deleted when the operator is done with it.
+ * <p>
+ * A spill file is private to its operator, so it is read and written
+ * directly rather than through the BufferPool, without locking or
+ * logging, and tuples are stored as their fields one after another, each
+ * in the form its Type serializes it.  The file remembers where every
+ * SEEK_EVERY'th tuple starts, so it can be read from any tuple on without
+ * reading the ones before it, give or take SEEK_EVERY.
+ * <p>
+ * Files that are still live when the JVM exits, e.g. because a query was
+ * abandoned without closing its operators, are deleted by one shutdown
+ * hook.
+ */
+class SpillFile {
+
+    /** Tuples between the ones whose place in the file is remembered. */
+    static final int SEEK_EVERY = 64;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private CountingOutputStream counter;
+    private int size = 0;
+    private long[] offsets = new long[16];  // of tuples 0, SEEK_EVERY, 2 * SEEK_EVERY, ...
+
+    // the files not deleted yet
+    private static final Set<File> live = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("simpledb spill cleanup") {
+            public void run() {
+                for (File f : live)
+                    f.delete();
+            }
+        });
+    }
+
+    /** Counts the bytes written through it. */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Create an empty spill file for tuples of td.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            this.file = File.createTempFile("spill", ".dat");
+            live.add(file);
+            this.counter = new CountingOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BufferPool.getPageSize()));
+            this.out = new DataOutputStream(counter);
+        } catch (IOException e) {
+            throw new DbException("cannot create a spill file: " + e.getMessage());
+        }
+    }
+
+    /** @return the number of tuples added */
+    public int size() {
+        return size;
+    }
+
+    /** Append t, which must have the TupleDesc of the file. */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new DbException("spill file is closed for writing");
+        if (size % SEEK_EVERY == 0) {
+            int i = size / SEEK_EVERY;
+            if (i == offsets.length)
+                offsets = Arrays.copyOf(offsets, i * 2);
+            offsets[i] = counter.count;
+        }
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                td.getFieldType(i).serialize(t.getField(i), out);
+        } catch (IOException e) {
+            throw new DbException("cannot write a spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * @return an iterator over the tuples of the file, in the order they were
+     *   added.  No tuples can be added once the file has been read.
+     */
+    public DbFileIterator iterator() throws DbException {
+        return iterator(0);
+    }
+
+    /**
+     * @return an iterator over the tuples of the file from the from'th on,
+     *   counting from 0, in the order they were added; rewinding it returns
+     *   to the from'th tuple.  No tuples can be added once the file has been
+     *   read.
+     */
+    public DbFileIterator iterator(final int from) throws DbException {
+        finish();
+        return new AbstractDbFileIterator() {
+            private DataInputStream in = null;
+            private int read = 0;
+
+            public void open() throws DbException {
+                int start = Math.min(from, size);
+                read = start - start % SEEK_EVERY;
+                try {
+                    FileInputStream fin = new FileInputStream(file);
+                    if (read > 0)
+                        fin.getChannel().position(offsets[read / SEEK_EVERY]);
+                    in = new DataInputStream(new BufferedInputStream(
+                            fin, BufferPool.getPageSize()));
+                } catch (IOException e) {
+                    throw new DbException("cannot read a spill file: " + e.getMessage());
+                }
+                while (read < start)
+                    readNext();
+            }
+
+            protected Tuple readNext() throws DbException {
+                if (in == null || read == size)
+                    return null;
+                Tuple t = new Tuple(td);
+                try {
+                    for (int i = 0; i < td.numFields(); i++)
+                        t.setField(i, td.getFieldType(i).parse(in));
+                } catch (ParseException e) {
+                    throw new DbException("cannot read a spill file: " + e.getMessage());
+                }
+                read++;
+                return t;
+            }
+
+            public void rewind() throws DbException {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // only read from; nothing is lost
+                    }
+                    in = null;
+                }
+            }
+        };
+    }
+
+    /** Stop adding tuples and flush those added to disk. */
+    private void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("cannot write a spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /** Delete the file; it cannot be used afterwards. */
+    public void delete() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // the file is going anyway
+        }
+        file.delete();
+        live.remove(file);
+    }
+}
@@ -114,7 +114,8 @@ public class TableStats {
         try {
             Transaction t = new Transaction();
             t.start();
-            SeqScan s = new SeqScan(t.getId(), tableid, "t");
+            // through a ring, so as not to flush the buffer pool
+            SeqScan s = new SeqScan(t.getId(), tableid, "t", true);
             s.open();
             while (s.hasNext()) {
                 Tuple tup = s.next();
@@ -128,6 +129,7 @@ public class TableStats {
                     }
                 }
             }
+            s.close();
             t.commit();
         } catch (Exception e) {
             e.printStackTrace();
@@ -147,7 +149,7 @@ public class TableStats {
         try {
             Transaction t = new Transaction();
             t.start();
-            SeqScan s = new SeqScan(t.getId(), tableid, "t");
+            SeqScan s = new SeqScan(t.getId(), tableid, "t", true);
             s.open();
             while (s.hasNext()) { // scan again to populate histograms
                 Tuple tup = s.next();
@@ -163,6 +165,7 @@ public class TableStats {
                 }
 
             }
+            s.close();
             t.commit();
         } catch (Exception e) {
             e.printStackTrace();
@@ -221,7 +224,7 @@ public class TableStats {
                 if (td.getFieldType(field) == Type.INT_TYPE) {
                     return ((IntHistogram) this.histograms[field])
                             .avgSelectivity();
-                } else if (td.getFieldType(field) == Type.STRING_TYPE) {
+                } else {
                     return ((StringHistogram) this.histograms[field])
                             .avgSelectivity();
                 }
@@ -30,6 +30,17 @@ public class Tuple implements Serializable {
         fields=new Field[td.numFields()];
     }
 
+    /**
+     * Create a new tuple of schema td, which holds the fields of t1 followed
+     * by those of t2, as joins return them.
+     */
+    public Tuple(TupleDesc td, Tuple t1, Tuple t2) {
+        this.td = td;
+        fields = new Field[td.numFields()];
+        System.arraycopy(t1.fields, 0, fields, 0, t1.fields.length);
+        System.arraycopy(t2.fields, 0, fields, t1.fields.length, t2.fields.length);
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
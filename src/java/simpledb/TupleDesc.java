@@ -141,7 +141,9 @@ public class TupleDesc implements Serializable {
 
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
-     *         Note that tuples from a given TupleDesc are of a fixed size.
+     *         Note that tuples from a given TupleDesc are of a fixed size,
+     *         unless isFixedSize is false, in which case this is the largest
+     *         size they can take.
      */
     public int getSize() {
         // some code goes here
@@ -152,6 +154,19 @@ public class TupleDesc implements Serializable {
         return result;
     }
 
+    /**
+     * @return true if every tuple of this TupleDesc takes getSize() bytes,
+     *   false if some field has a variable-length type
+     * @see Type#isFixedLength
+     */
+    public boolean isFixedSize() {
+        for (int i = 0; i < numFields(); i++) {
+            if (!getFieldType(i).isFixedLength())
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * A page of a HeapFile.  Tables whose tuples all have the same size are
+ * stored in HeapPages, with a fixed number of slots per page; tables with
+ * variable-length fields are stored in SlottedHeapPages.
+ *
+ * @see HeapPage
+ * @see SlottedHeapPage
+ * @see TupleDesc#isFixedSize
+ */
+public interface TuplePage extends Page {
+
+    public HeapPageId getId();
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to
+     * reflect that it is now stored on this page.
+     * @throws DbException if the page has no room for the tuple or tupledesc
+     *         is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Delete the specified tuple from the page;  the tuple should be updated
+     * to reflect that it is no longer stored on any page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * Returns the number of tuples that can still be added to this page.  For
+     * pages of variable-length tuples, this is how many tuples of the largest
+     * size still fit.
+     */
+    public int getNumEmptySlots();
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i);
+
+    /**
+     * Decode a single field of the tuple in a slot.
+     *
+     * @return the field, or null if the slot is empty
+     */
+    public Field getField(int slotId, int fieldNo);
+
+    /**
+     * @return an iterator over all tuples on this page
+     */
+    public Iterator<Tuple> iterator();
+}
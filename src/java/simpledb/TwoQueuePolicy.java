@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). Pages read for the first time go
+ * into a FIFO queue, A1in. When they leave A1in only their ids are kept, in a
+ * second FIFO, A1out. A page that is read again while its id is in A1out has
+ * proven itself and is admitted to the LRU queue Am. One-shot scan pages
+ * therefore flow through A1in without disturbing the hot pages in Am.
+ * <p>
+ * Hits are queued in an AccessBuffer and applied when the policy next takes
+ * its lock, so lookups of resident pages do not serialize on it.
+ *
+ * @Threadsafe
+ */
+public class TwoQueuePolicy extends AbstractReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    // everything below is protected by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessBuffer pending = new AccessBuffer(lock, AccessBuffer.DEFAULT_CAPACITY) {
+        protected void apply(PageId pid) {
+            touch(pid);
+        }
+    };
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    /**
+     * Creates a 2Q policy with the tuning suggested in the paper: A1in holds
+     * a quarter of the pool and A1out remembers half as many ids as the pool
+     * has pages.
+     */
+    public TwoQueuePolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param kin the target size of A1in
+     * @param kout the number of page ids remembered in A1out
+     */
+    public TwoQueuePolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    protected void accessed(PageId pid) {
+        pending.record(pid);
+    }
+
+    private void touch(PageId pid) {
+        // hits in A1in are deliberately ignored; they are correlated references
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    protected void admitted(PageId pid) {
+        lock.lock();
+        try {
+            pending.drain();
+            if (a1in.contains(pid) || am.contains(pid)) {
+                touch(pid);
+            } else if (a1out.remove(pid)) {
+                am.add(pid);
+            } else {
+                a1in.add(pid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void evicted(PageId pid) {
+        lock.lock();
+        try {
+            pending.drain();
+            if (a1in.remove(pid)) {
+                a1out.add(pid);
+                if (a1out.size() > kout) {
+                    Iterator<PageId> oldest = a1out.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            } else {
+                am.remove(pid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void discarded(PageId pid) {
+        lock.lock();
+        try {
+            pending.drain();
+            // a discarded page was not pushed out, so it earns no place in A1out
+            a1in.remove(pid);
+            a1out.remove(pid);
+            am.remove(pid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of the resident pages: the head of A1in first if it
+     *   is over its target size, otherwise the LRU end of Am first.
+     */
+    public Iterator<PageId> victims() {
+        lock.lock();
+        try {
+            pending.drain();
+            ArrayList<PageId> order = new ArrayList<PageId>(a1in.size() + am.size());
+            if (a1in.size() > kin || am.isEmpty()) {
+                order.addAll(a1in);
+                order.addAll(am);
+            } else {
+                order.addAll(am);
+                order.addAll(a1in);
+            }
+            return order.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -2,11 +2,17 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
  * Types are static objects defined by this class; hence, the Type
  * constructor is private.
+ * <p>
+ * STRING_TYPE fields always take STRING_LEN bytes plus their length.
+ * VARCHAR_TYPE fields hold the same strings but are stored with their
+ * actual length, so getLen() is only their maximum size; tables with
+ * VARCHAR_TYPE columns are stored in SlottedHeapPages.
  */
 public enum Type implements Serializable {
     INT_TYPE() {
@@ -24,6 +30,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +53,58 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            byte bs[] = new byte[strLen];
+            ByteBuffer chars = buf.duplicate();
+            chars.position(offset + 4);
+            chars.get(bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
+    }, VARCHAR_TYPE() {
+        // a 2-byte length followed by that many bytes, without padding
+        @Override
+        public int getLen() {
+            return STRING_LEN+2;
+        }
+
+        @Override
+        public int getLen(ByteBuffer buf, int offset) {
+            return 2 + buf.getChar(offset);
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readChar();
+                byte bs[] = new byte[strLen];
+                dis.readFully(bs);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getChar(offset);
+            byte bs[] = new byte[strLen];
+            ByteBuffer chars = buf.duplicate();
+            chars.position(offset + 2);
+            chars.get(bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
+
+        @Override
+        public void serialize(Field f, DataOutputStream dos) throws IOException {
+            String s = ((StringField) f).getValue();
+            if (s.length() > STRING_LEN)
+                s = s.substring(0, STRING_LEN);
+            dos.writeChar(s.length());
+            dos.writeBytes(s);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -51,6 +114,31 @@ public enum Type implements Serializable {
    */
     public abstract int getLen();
 
+  /**
+   * @return the number of bytes the field stored at offset in buf takes.
+   *   This is getLen() except for VARCHAR_TYPE, whose fields take only as
+   *   many bytes as their value needs.
+   */
+    public int getLen(ByteBuffer buf, int offset) {
+        return getLen();
+    }
+
+  /**
+   * @return true if every field of this type takes getLen() bytes
+   */
+    public boolean isFixedLength() {
+        return this != VARCHAR_TYPE;
+    }
+
+  /**
+   * Write f, a field of this type, to dos in the form parse reads.  This is
+   * f.serialize(dos) except for VARCHAR_TYPE, whose fields are written
+   * without padding.
+   */
+    public void serialize(Field f, DataOutputStream dos) throws IOException {
+        f.serialize(dos);
+    }
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
@@ -60,4 +148,11 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents
+   *   are the getLen() bytes of buf starting at offset.  The position of
+   *   buf is not changed.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
@@ -107,6 +107,8 @@ public class Utility {
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
         fos.close();
+        FreeSpaceMap.drop(f);
+        PageChecksums.drop(f);
 
         HeapFile hf = openHeapFile(cols, f);
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
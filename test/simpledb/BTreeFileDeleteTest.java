@@ -186,6 +186,8 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 5 + 3*entriesPerPage/2);
+		// the children that move stay pinned until the operation is over
+		Database.resetBufferPool(5 + 3*entriesPerPage/2);
 		int tableid = empty.getId();
 		int keyField = 0;
 
@@ -252,6 +254,8 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 5 + 3*entriesPerPage/2);
+		// the children that move stay pinned until the operation is over
+		Database.resetBufferPool(5 + 3*entriesPerPage/2);
 		int tableid = empty.getId();
 		int keyField = 0;
 
@@ -318,6 +322,8 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 1 + 2*entriesPerPage);
+		// the children that move stay pinned until the operation is over
+		Database.resetBufferPool(1 + 2*entriesPerPage);
 		int tableid = empty.getId();
 		int keyField = 0;
 
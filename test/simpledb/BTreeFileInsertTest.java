@@ -89,6 +89,8 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		Database.reset();
 		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
 		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3 + entriesPerPage);
+		// the children that move stay pinned until the operation is over
+		Database.resetBufferPool(3 + entriesPerPage);
 		int tableid = empty.getId();
 		int keyField = 0;
 
@@ -172,6 +174,32 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	/**
+	 * Pages fetched read-write stay pinned until the tree operation that fetched
+	 * them ends, and the operation then drops their pins.
+	 */
+	@Test
+	public void testPinsDirtyPages() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		BufferPool bp = Database.getBufferPool();
+
+		BTreePageId leafId = new BTreePageId(empty.getId(), 2, BTreePageId.LEAF);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		empty.getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+		assertEquals(1, bp.getPinCount(leafId));
+		// served from the dirty pages, without another pin
+		empty.getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+		assertEquals(1, bp.getPinCount(leafId));
+		bp.unpinPage(tid, leafId);
+
+		// the new root leaf is the last page of the file
+		bp.insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(new int[] {1, 2}));
+		assertEquals(0, bp.getPinCount(new BTreePageId(empty.getId(), 3, BTreePageId.LEAF)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
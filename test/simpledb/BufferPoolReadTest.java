@@ -0,0 +1,184 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolReadTest extends TestUtil.CreateHeapFile {
+
+    // heap file that counts and slows down its page reads
+    class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile data = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        hf = new SlowHeapFile(data.getFile(), data.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Concurrent misses on the same page wait for a single read.
+     */
+    @Test public void concurrentMissesShareOneRead() throws Exception {
+        final PageId pid = new HeapPageId(hf.getId(), 0);
+        final Page[] pages = new Page[8];
+        Thread[] threads = new Thread[pages.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int slot = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        pages[slot] = Database.getBufferPool().getPage(
+                                new TransactionId(), pid, Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, hf.reads.get());
+        for (Page p : pages)
+            assertSame(pages[0], p);
+        assertEquals(1, Database.getBufferPool().getReplacementPolicy().getMissCount());
+    }
+
+    /**
+     * A pinned page is never evicted; once every page is pinned the pool
+     * refuses to load more.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        PageId p1 = new HeapPageId(hf.getId(), 1);
+
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(p0));
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, p0);
+        assertEquals(0, bp.getPinCount(p0));
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(p1));
+        assertEquals(1, bp.getReplacementPolicy().getEvictionCount());
+    }
+
+    /**
+     * A scan has the pages after the first few read ahead of it, each page
+     * is still read once, and the scan finds the pages read ahead in the
+     * pool.
+     */
+    @Test public void scanReadsAhead() throws Exception {
+        int pages = 20;
+        HeapFile data = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        SlowHeapFile big = new SlowHeapFile(data.getFile(), data.getTupleDesc());
+        Database.getCatalog().addTable(big, SystemTestUtil.getUUID());
+        BufferPool bp = Database.getBufferPool();
+
+        DbFileIterator it = big.iterator(new TransactionId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+
+        assertEquals(504 * pages, n);
+        assertEquals(pages, big.reads.get());
+        assertEquals(pages, bp.getReplacementPolicy().getMissCount());
+        // the first pages show that the scan is sequential
+        assertEquals(pages - ReadAhead.MIN_RUN - 1, bp.getPrefetchHitCount());
+        assertEquals(bp.getPrefetchHitCount(), bp.getPrefetchCount());
+        assertEquals(0, bp.getPrefetchWasteCount());
+    }
+
+    /**
+     * A scan of a table larger than the pool reads it through
+     * a ring and evicts nothing; a page of the ring asked for again moves
+     * to the pool without being read again.
+     */
+    @Test public void largeScanUsesRing() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.unpinPage(tid, p0);
+
+        int pages = 20;
+        HeapFile data = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        SlowHeapFile big = new SlowHeapFile(data.getFile(), data.getTupleDesc());
+        Database.getCatalog().addTable(big, SystemTestUtil.getUUID());
+        assertTrue(bp.isLargeScan(pages));
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "big");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        PageId last = new HeapPageId(big.getId(), pages - 1);
+        bp.getPage(tid, last, Permissions.READ_ONLY);
+        scan.close();
+
+        assertEquals(504 * pages, n);
+        assertEquals(pages, big.reads.get());
+        assertEquals(1, bp.getPinCount(last));
+        assertEquals(0, bp.getReplacementPolicy().getEvictionCount());
+        assertEquals(2, bp.getReplacementPolicy().getMissCount());
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getReplacementPolicy().getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolReadTest.class);
+    }
+}
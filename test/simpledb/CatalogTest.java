@@ -1,7 +1,13 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +99,69 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * The mmap option of a schema line memory-maps the table's file.
+     */
+    @Test public void loadSchemaOptions() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File schema = new File(dir, "schema.txt");
+        schema.deleteOnExit();
+        Files.write(schema.toPath(), Arrays.asList("plain (a int, b int)", "mapped (a int pk, b string) mmap"),
+                StandardCharsets.UTF_8);
+
+        Database.getCatalog().loadSchema(schema.getPath());
+        Catalog catalog = Database.getCatalog();
+        assertFalse(((HeapFile) catalog.getDatabaseFile(catalog.getTableId("plain"))).isMemoryMapped());
+        HeapFile mapped = (HeapFile) catalog.getDatabaseFile(catalog.getTableId("mapped"));
+        assertTrue(mapped.isMemoryMapped());
+        assertEquals("a", catalog.getPrimaryKey(mapped.getId()));
+    }
+
+    /**
+     * varchar(STRING_LEN) fields are VARCHAR_TYPE fields, and the field list may
+     * contain parentheses.
+     */
+    @Test public void loadSchemaVarchar() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File schema = new File(dir, "schema.txt");
+        schema.deleteOnExit();
+        Files.write(schema.toPath(), Arrays.asList("people (id int, name varchar(" + Type.STRING_LEN + "), city varchar) mmap"),
+                StandardCharsets.UTF_8);
+
+        Database.getCatalog().loadSchema(schema.getPath());
+        Catalog catalog = Database.getCatalog();
+        HeapFile people = (HeapFile) catalog.getDatabaseFile(catalog.getTableId("people"));
+        TupleDesc td = people.getTupleDesc();
+        assertEquals(Type.INT_TYPE, td.getFieldType(0));
+        assertEquals(Type.VARCHAR_TYPE, td.getFieldType(1));
+        assertEquals(Type.VARCHAR_TYPE, td.getFieldType(2));
+        assertFalse(td.isFixedSize());
+        assertTrue(people.isMemoryMapped());
+    }
+
+    /**
+     * A table that another one with its name replaces is closed, and opens
+     * its file again if it is still read.
+     */
+    @Test public void replaceClosesTable() throws Exception {
+        HeapFile old = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        old.setMemoryMapped(true);
+        Page before = old.readPage(new HeapPageId(old.getId(), 1));
+        String oldName = Database.getCatalog().getTableName(old.getId());
+
+        HeapFile replacement = new HeapFile(old.getFile(), old.getTupleDesc());
+        Database.getCatalog().addTable(replacement, oldName);
+        assertEquals(replacement, Database.getCatalog().getDatabaseFile(old.getId()));
+        assertTrue(Arrays.equals(before.getPageData(),
+                old.readPage(new HeapPageId(old.getId(), 1)).getPageData()));
+
+        int pages = replacement.numPages();
+        Database.getCatalog().clear();
+        assertEquals(pages, replacement.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -67,6 +67,72 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for HashEquiJoin.rewind(), which probes the same hash table
+   * again
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    Tuple expected = eqJoin.next();
+    Tuple actual = op.next();
+    assertTrue(TestUtil.compareTuples(expected, actual));
+  }
+
+  /**
+   * Unit test for a HashEquiJoin on string fields
+   */
+  @Test public void stringJoin() throws Exception {
+    DbIterator left = TestUtil.createTupleList(2,
+        new Object[] { "a", 1, "b", 2, "a", 3 });
+    DbIterator right = TestUtil.createTupleList(2,
+        new Object[] { 4, "a", 5, "c" });
+    DbIterator expected = TestUtil.createTupleList(4,
+        new Object[] { "a", 1, 4, "a",
+                       "a", 3, 4, "a" });
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        left, right);
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Unit test for a HashEquiJoin with too little memory for its left
+   * relation, which spills it to disk, and joins the same after a rewind
+   */
+  @Test public void spillJoin() throws Exception {
+    // a page holds two tuples of scan1
+    BufferPool.setPageSize(2 * scan1.getTupleDesc().getSize());
+    try {
+      JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+      HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2, 1);
+      op.open();
+      assertTrue(op.getSpilledPartitions() > 0);
+      eqJoin.open();
+      TestUtil.matchAllTuples(eqJoin, op);
+      // the first pass builds its table again, and the spilled partitions
+      // are joined once more
+      op.rewind();
+      int count = 0;
+      while (op.hasNext()) {
+        op.next();
+        count++;
+      }
+      assertEquals(3, count);
+      op.close();
+    } finally {
+      BufferPool.resetPageSize();
+    }
+  }
+
     private static final int COLUMNS = 2;
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
@@ -77,6 +77,27 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A memory-mapped table reads the same pages, and sees pages appended
+     * after it was mapped.
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage copied = (HeapPage) hf.readPage(pid);
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        HeapPage mapped = (HeapPage) hf.readPage(pid);
+        assertArrayEquals(copied.getPageData(), mapped.getPageData());
+        assertArrayEquals(copied.getPageData(), mapped.getBeforeImage().getPageData());
+
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        HeapPage page = new HeapPage(next, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(3, 2));
+        hf.writePage(page);
+        assertEquals(503, ((HeapPage) hf.readPage(next)).getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
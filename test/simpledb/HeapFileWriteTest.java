@@ -4,6 +4,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.systemtest.SystemTestUtil;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -43,6 +45,100 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts fill the pages the free space map knows to have room, and
+     * leave the tuples already on them alone.
+     */
+    @Test public void insertReusesFreedSlots() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId t = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t,
+                new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        Database.getBufferPool().deleteTuple(t, victim);
+        assertEquals(1, hf.getFreeSpaceMap().findPage());
+
+        Database.getBufferPool().insertTuple(t, hf.getId(), Utility.getHeapTuple(5, 2));
+        assertEquals(3, hf.numPages());
+        assertEquals(0, page.getNumEmptySlots());
+        assertEquals(-1, hf.getFreeSpaceMap().findPage());
+
+        // every page is full again, so the next insert extends the file
+        Database.getBufferPool().insertTuple(t, hf.getId(), Utility.getHeapTuple(6, 2));
+        assertEquals(4, hf.numPages());
+        Database.getBufferPool().transactionComplete(t);
+
+        int count = 0;
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 3 + 1, count);
+        hf.getFreeSpaceMap().getFile().delete();
+    }
+
+    /**
+     * A page filled by an insert that is rolled back has room again.
+     */
+    @Test public void abortGivesBackRoom() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId t = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t,
+                new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t, page.iterator().next());
+        Database.getBufferPool().transactionComplete(t);
+
+        t = new TransactionId();
+        Database.getBufferPool().insertTuple(t, hf.getId(), Utility.getHeapTuple(5, 2));
+        assertEquals(-1, hf.getFreeSpaceMap().findPage());
+        Database.getBufferPool().transactionComplete(t, false);
+        assertEquals(1, hf.getFreeSpaceMap().findPage());
+        hf.getFreeSpaceMap().getFile().delete();
+    }
+
+    /**
+     * A side file left by an earlier table at the same path is not trusted.
+     */
+    @Test public void staleFreeSpaceMap() throws Exception {
+        // a map of ten full pages
+        java.io.DataOutputStream out = new java.io.DataOutputStream(
+                new java.io.FileOutputStream(empty.getFreeSpaceMap().getFile()));
+        out.writeInt(10);
+        out.write(new byte[2]);
+        out.close();
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(0, reopened.getFreeSpaceMap().findPage());
+
+        // and creating a table drops the map of the old one
+        empty.getFreeSpaceMap().setHasRoom(0, false);
+        assertTrue(empty.getFreeSpaceMap().getFile().exists());
+        HeapFile created = Utility.createEmptyHeapFile(empty.getFile().getPath(), 2);
+        assertEquals(0, created.getFreeSpaceMap().findPage());
+        created.getFreeSpaceMap().getFile().delete();
+    }
+
+    /**
+     * writePage extends the file through the table's open channel, and
+     * numPages and readPage see the new page at once.
+     */
+    @Test public void writePageExtendsFile() throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), 2);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        empty.writePage(page);
+
+        assertEquals(3, empty.numPages());
+        assertEquals(3L * BufferPool.getPageSize(), empty.getFile().length());
+        HeapPage read = (HeapPage) empty.readPage(pid);
+        assertEquals(page.getNumEmptySlots(), read.getNumEmptySlots());
+        assertEquals(Utility.getHeapTuple(7, 2).getField(0), read.iterator().next().getField(0));
+    }
+
     /**
      * JUnit suite target
      */
@@ -99,6 +99,16 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getField(), which decodes one field in place
+     */
+    @Test public void getField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++)
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) page.getField(row, 1)).getValue());
+        assertEquals(null, page.getField(20, 0));
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -1,7 +1,9 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.Iterator;
@@ -85,6 +87,63 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A page changes a copy of the bytes it was built from, and those bytes
+     * remain its before image.
+     */
+    @Test public void changesCopyTheSourceBytes() throws Exception {
+        byte[] source = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, source);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.deleteTuple(page.iterator().next());
+
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, source);
+        assertArrayEquals(source, page.getBeforeImage().getPageData());
+        assertEquals(484, page.getNumEmptySlots());
+
+        // after setBeforeImage the current bytes are the before image
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        assertEquals(483, page.getNumEmptySlots());
+    }
+
+    /**
+     * Inserts take the lowest empty slot, also past the first word of the
+     * header bitmap, and a full page refuses more.
+     */
+    @Test public void insertTakesLowestEmptySlot() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple victim = null;
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = Utility.getHeapTuple(0, 2);
+            page.insertTuple(t);
+            if (t.getRecordId().tupleno() == 200)
+                victim = t;
+        }
+        assertEquals(504, countTuples(page));
+
+        page.deleteTuple(victim);
+        assertEquals(1, page.getNumEmptySlots());
+        Tuple t = Utility.getHeapTuple(1, 2);
+        page.insertTuple(t);
+        assertEquals(200, t.getRecordId().tupleno());
+        try {
+            page.insertTuple(Utility.getHeapTuple(2, 2));
+            fail("page should be full; expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    private static int countTuples(HeapPage page) {
+        int n = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next())
+            n++;
+        return n;
+    }
+
     /**
      * Unit test for HeapPage.deleteTuple() with false tuples
      */
@@ -0,0 +1,71 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class IntTupleTableTest {
+
+    private static ArrayList<Tuple> lookup(IntTupleTable table, int key) {
+        ArrayList<Tuple> found = new ArrayList<Tuple>();
+        for (int row = table.first(key); row >= 0; row = table.next(row))
+            found.add(table.get(row));
+        return found;
+    }
+
+    /**
+     * Every key finds the tuples added under it, in the order they were
+     * added, as the table grows well past its initial size.
+     */
+    @Test public void addAndLookup() {
+        IntTupleTable table = new IntTupleTable();
+        ArrayList<Tuple> added = new ArrayList<Tuple>();
+        int n = 10000;
+        for (int i = 0; i < n; i++) {
+            Tuple t = Utility.getHeapTuple(i);
+            // keys 0, -1 and Integer.MIN_VALUE are ordinary keys
+            int key = i % 3 == 0 ? -(i / 3) : Integer.MIN_VALUE + i;
+            table.add(key, t);
+            added.add(t);
+        }
+        assertEquals(n, table.size());
+        for (int i = 0; i < n; i++) {
+            int key = i % 3 == 0 ? -(i / 3) : Integer.MIN_VALUE + i;
+            ArrayList<Tuple> found = lookup(table, key);
+            assertEquals(1, found.size());
+            assertSame(added.get(i), found.get(0));
+        }
+        assertTrue(table.first(1) < 0);
+    }
+
+    @Test public void duplicates() {
+        IntTupleTable table = new IntTupleTable(4);
+        ArrayList<Tuple> sevens = new ArrayList<Tuple>();
+        for (int i = 0; i < 100; i++) {
+            Tuple t = Utility.getHeapTuple(i);
+            table.add(i % 2 == 0 ? 7 : 1000 + i, t);
+            if (i % 2 == 0)
+                sevens.add(t);
+        }
+        assertEquals(sevens, lookup(table, 7));
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertTrue(table.first(7) < 0);
+        table.add(7, sevens.get(1));
+        assertEquals(1, lookup(table, 7).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntTupleTableTest.class);
+    }
+}
@@ -205,6 +205,99 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(Boolean.TRUE, ret[0]);
     }
 
+    /**
+     * Equality joins are hashed while joins have memory, range joins are
+     * sort-merged, and orderJoins records the algorithms chosen for
+     * instantiateJoin.
+     */
+    @Test
+    public void chooseAlgorithm() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;");
+        LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.LESS_THAN);
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(eq);
+        JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH,
+                jo.chooseAlgorithm(eq, 1000, 10000, 100.0, 1000.0));
+        Assert.assertEquals(JoinOptimizer.Algorithm.SORT_MERGE,
+                jo.chooseAlgorithm(lt, 1000, 10000, 100.0, 1000.0));
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t2", 1.0);
+        LogicalJoinNode chosen = jo.orderJoins(stats, filterSelectivities, false).get(0);
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH, chosen.algorithm);
+        Assert.assertNull(eq.algorithm);
+
+        TupleIterator left = new TupleIterator(Utility.getTupleDesc(10, "t1.c"),
+                new ArrayList<Tuple>());
+        TupleIterator right = new TupleIterator(Utility.getTupleDesc(10, "t2.c"),
+                new ArrayList<Tuple>());
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq.withAlgorithm(
+                JoinOptimizer.Algorithm.HASH), left, right) instanceof HashEquiJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(lt.withAlgorithm(
+                JoinOptimizer.Algorithm.SORT_MERGE), left, right) instanceof SortMergeJoin);
+
+        int memory = JoinOptimizer.getMemoryPages();
+        try {
+            // 1000 tuples of 10 ints take 10 pages, so most are spilled
+            double cost = jo.estimateJoinCost(eq, 1000, 10000, 100.0, 1000.0);
+            JoinOptimizer.setMemoryPages(1);
+            Assert.assertEquals(JoinOptimizer.Algorithm.HASH,
+                    jo.chooseAlgorithm(eq, 1000, 10000, 100.0, 1000.0));
+            Assert.assertTrue(jo.estimateJoinCost(eq, 1000, 10000, 100.0, 1000.0) > cost);
+            JoinOptimizer.setMemoryPages(0);
+            Assert.assertEquals(JoinOptimizer.Algorithm.NESTED_LOOPS,
+                    jo.chooseAlgorithm(eq, 1000, 10000, 100.0, 1000.0));
+            Assert.assertEquals(JoinOptimizer.Algorithm.NESTED_LOOPS,
+                    jo.chooseAlgorithm(lt, 1000, 10000, 100.0, 1000.0));
+            Assert.assertTrue(JoinOptimizer.instantiateJoin(eq, left, right) instanceof Join);
+        } finally {
+            JoinOptimizer.setMemoryPages(memory);
+        }
+    }
+
+    /**
+     * A B+ tree file keyed on the join field needs no sort, so a sort-merge
+     * join is chosen when the query orders its result on that field, sparing
+     * the final sort, and a hash join otherwise.
+     */
+    @Test
+    public void sortMergeForOrderBy() throws ParsingException, IOException {
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        BTreeFile f3 = BTreeUtility.openBTreeFile(10, "c", temp, 1);
+        Database.getCatalog().addTable(f3, "TC");
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put("TC", stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t3", 1.0);
+
+        TransactionId tid = new TransactionId();
+        String query = "SELECT * FROM " + tableName1 + " t1, TC t3 WHERE t1.c1 = t3.c1";
+        for (String order : new String[] { "", " ORDER BY t3.c1" }) {
+            LogicalPlan lp = new Parser().generateLogicalPlan(tid, query + order + ";");
+            Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+            nodes.add(new LogicalJoinNode("t1", "t3", "c1", "c1", Predicate.Op.EQUALS));
+            JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+            LogicalJoinNode chosen = jo.orderJoins(stats, filterSelectivities, false).get(0);
+            Assert.assertEquals(order.isEmpty() ? JoinOptimizer.Algorithm.HASH
+                    : JoinOptimizer.Algorithm.SORT_MERGE, chosen.algorithm);
+        }
+    }
+
     /**
      * Verify that the join cardinalities produced by estimateJoinCardinality()
      * are reasonable
@@ -105,6 +105,31 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() reading the outer relation in blocks of
+   * two tuples, so that the inner relation is rewound between blocks
+   */
+  @Test public void blockJoin() throws Exception {
+    // a page holds two tuples of scan1
+    BufferPool.setPageSize(2 * scan1.getTupleDesc().getSize());
+    try {
+      JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+      Join op = new Join(pred, scan1, scan2, 1);
+      assertEquals(2, op.getBlockTuples());
+      op.open();
+      int n = 0;
+      while (op.hasNext()) {
+        op.next();
+        n++;
+      }
+      assertEquals(11, n);
+      gtJoin.open();
+      TestUtil.matchAllTuples(gtJoin, op);
+    } finally {
+      BufferPool.resetPageSize();
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockingTest extends TestUtil.CreateHeapFile {
+    private static final int TIMEOUT = 100;
+
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+
+        // create a table with two full pages
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /**
+     * Start a LockGrabber for tid/pid/perm, wait TIMEOUT ms and check
+     * whether it got the lock.
+     */
+    private TestUtil.LockGrabber grabLock(TransactionId tid, PageId pid, Permissions perm,
+            boolean expected) throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(expected, t.acquired());
+        return t;
+    }
+
+    @Test public void acquireReadLocksOnSamePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        grabLock(tid2, p0, Permissions.READ_ONLY, true);
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+    }
+
+    @Test public void acquireReadWriteLocksOnSamePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        grabLock(tid2, p0, Permissions.READ_WRITE, false);
+    }
+
+    @Test public void acquireWriteReadLocksOnSamePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p0, Permissions.READ_ONLY, false);
+    }
+
+    @Test public void acquireWriteLocksOnTwoPages() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p1, Permissions.READ_WRITE, true);
+    }
+
+    @Test public void lockUpgrade() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        grabLock(tid2, p0, Permissions.READ_ONLY, false);
+    }
+
+    @Test public void releaseWakesWaiters() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t = grabLock(tid2, p0, Permissions.READ_WRITE, false);
+        bp.transactionComplete(tid1);
+        assertFalse(bp.holdsLock(tid1, p0));
+        t.join(TIMEOUT * 10);
+        assertTrue(t.acquired());
+    }
+
+    /**
+     * Two readers that both try to upgrade deadlock; the younger one must be
+     * aborted and the older one must get its lock once the victim gives up.
+     */
+    @Test public void upgradeDeadlockAbortsYoungest() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber older = grabLock(tid1, p0, Permissions.READ_WRITE, false);
+        TestUtil.LockGrabber younger = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+        younger.start();
+        younger.join(TIMEOUT * 10);
+        older.join(TIMEOUT * 10);
+
+        assertTrue(younger.getError() instanceof TransactionAbortedException);
+        assertNull(older.getError());
+        assertTrue(older.acquired());
+    }
+
+    /**
+     * A cycle through two pages is broken in favour of the older transaction,
+     * even if the older one closes the cycle.
+     */
+    @Test public void twoPageDeadlock() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+        TestUtil.LockGrabber younger = grabLock(tid2, p0, Permissions.READ_WRITE, false);
+        TestUtil.LockGrabber older = new TestUtil.LockGrabber(tid1, p1, Permissions.READ_WRITE);
+        older.start();
+        younger.join(TIMEOUT * 10);
+        older.join(TIMEOUT * 10);
+
+        assertTrue(younger.getError() instanceof TransactionAbortedException);
+        assertTrue(older.acquired());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+}
@@ -0,0 +1,196 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogSegmentsTest {
+
+    private static final long SEGMENT_SIZE = 100;
+
+    private File dir;
+    private File base;
+
+    @Before public void setUp() throws IOException {
+        dir = Files.createTempDirectory("logsegments").toFile();
+        base = new File(dir, "log");
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    // append the longs from..to-1 to the log
+    private static void appendLongs(LogSegments segments, int from, int to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((to - from) * 8);
+        for (int i = from; i < to; i++)
+            buf.putLong(i);
+        buf.flip();
+        segments.write(buf, segments.getEnd());
+    }
+
+    /**
+     * Writes are split at segment boundaries and read back as one stream.
+     */
+    @Test public void writeAcrossSegments() throws Exception {
+        LogSegments segments = new LogSegments(base, SEGMENT_SIZE);
+        appendLongs(segments, 0, 50);
+        segments.force();
+
+        assertEquals(400, segments.getEnd());
+        assertEquals(4, segments.getNumSegments());
+        assertEquals(SEGMENT_SIZE, segments.segmentFile(0).length());
+
+        LogSegments.Reader in = segments.openReader(0);
+        for (int i = 0; i < 50; i++)
+            assertEquals(i, in.readLong());
+        try {
+            in.readLong();
+            fail("expected EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+
+        in.seek(8 * 12); // spans segments 0 and 1
+        assertEquals(12, in.readLong());
+        assertEquals(8 * 13, in.getPosition());
+        segments.close();
+    }
+
+    /**
+     * Truncation drops whole segments, and their files are reused for new
+     * segments.
+     */
+    @Test public void truncateRecyclesSegments() throws Exception {
+        LogSegments segments = new LogSegments(base, SEGMENT_SIZE);
+        appendLongs(segments, 0, 50);
+
+        segments.truncate(250);
+        assertEquals(200, segments.getStart());
+        assertEquals(2, segments.getNumSegments());
+        assertEquals(2, segments.getNumSpares());
+        assertFalse(segments.segmentFile(0).exists());
+        try {
+            segments.read(ByteBuffer.allocate(8), 0);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        appendLongs(segments, 50, 60);
+        assertEquals(1, segments.getNumSpares());
+        assertTrue(segments.segmentFile(4).exists());
+        LogSegments.Reader in = segments.openReader(8 * 25);
+        for (int i = 25; i < 60; i++)
+            assertEquals(i, in.readLong());
+
+        // LSNs go on after the old segments rather than starting again at 0
+        segments.reset();
+        assertEquals(500, segments.getStart());
+        assertEquals(500, segments.getEnd());
+        assertEquals(LogSegments.MAX_SPARES, segments.getNumSpares());
+        assertEquals(-1, segments.read(ByteBuffer.allocate(8), 500));
+        segments.close();
+    }
+
+    /**
+     * A spare keeps its length and old bytes when it is reused, and is only
+     * taken when a segment file has to be created.
+     */
+    @Test public void sparesKeepTheirLength() throws Exception {
+        LogSegments segments = new LogSegments(base, SEGMENT_SIZE);
+        appendLongs(segments, 0, 30);
+        segments.truncate(200);
+        assertEquals(2, segments.getNumSpares());
+
+        // appending to the existing segment 2 takes no spare
+        appendLongs(segments, 30, 31);
+        assertEquals(2, segments.getNumSpares());
+        appendLongs(segments, 31, 40);
+        assertEquals(1, segments.getNumSpares());
+        assertEquals(SEGMENT_SIZE, segments.segmentFile(3).length());
+        segments.close();
+
+        // after a crash, the old bytes of the spare are cut off
+        segments = new LogSegments(base, SEGMENT_SIZE);
+        assertEquals(400, segments.getEnd());
+        segments.setEnd(8 * 40);
+        assertEquals(320, segments.getEnd());
+        LogSegments.Reader in = segments.openReader(8 * 39);
+        assertEquals(39, in.readLong());
+        try {
+            in.readLong();
+            fail("expected EOFException");
+        } catch (EOFException e) {
+            // expected
+        }
+
+        // and the next write overwrites them
+        appendLongs(segments, 40, 41);
+        in.seek(8 * 40);
+        assertEquals(40, in.readLong());
+        segments.close();
+    }
+
+    /**
+     * A log reset and reopened with no segments starts after its spares, so
+     * their old bytes never fall at their own LSNs.
+     */
+    @Test public void resetNeverReusesLsns() throws Exception {
+        LogSegments segments = new LogSegments(base, SEGMENT_SIZE);
+        appendLongs(segments, 0, 30);
+        segments.reset();
+        segments.close();
+
+        segments = new LogSegments(base, SEGMENT_SIZE);
+        assertEquals(3, segments.getNumSpares());
+        assertEquals(300, segments.getStart());
+        assertEquals(0, segments.getNumSegments());
+        segments.setEnd(400);
+        assertEquals(400, segments.getStart());
+        appendLongs(segments, 50, 51);
+        assertEquals(408, segments.getEnd());
+        assertEquals(2, segments.getNumSpares());
+        segments.close();
+    }
+
+    /**
+     * Reopening picks up the segments and spares left behind.
+     */
+    @Test public void reopen() throws Exception {
+        LogSegments segments = new LogSegments(base, SEGMENT_SIZE);
+        appendLongs(segments, 0, 30);
+        segments.truncate(120);
+        segments.close();
+
+        segments = new LogSegments(base, SEGMENT_SIZE);
+        assertEquals(100, segments.getStart());
+        assertEquals(240, segments.getEnd());
+        assertEquals(1, segments.getNumSpares());
+        LogSegments.Reader in = segments.openReader(8 * 15);
+        assertEquals(15, in.readLong());
+        segments.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
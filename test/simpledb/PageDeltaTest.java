@@ -0,0 +1,76 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class PageDeltaTest {
+
+    private static byte[] page(int size, int... changedOffsets) {
+        byte[] data = new byte[size];
+        for (int i : changedOffsets)
+            data[i] = (byte)(i + 1);
+        return data;
+    }
+
+    @Test public void redoAndUndo() {
+        byte[] before = page(4096);
+        byte[] after = page(4096, 10, 11, 2000);
+        PageDelta delta = PageDelta.diff(before, after);
+
+        byte[] image = before.clone();
+        delta.redo(image);
+        assertArrayEquals(after, image);
+        // applying it twice changes nothing
+        delta.redo(image);
+        assertArrayEquals(after, image);
+        delta.undo(image);
+        assertArrayEquals(before, image);
+    }
+
+    /**
+     * Changes close together share a range; distant ones do not, and
+     * unchanged bytes are not logged.
+     */
+    @Test public void ranges() {
+        PageDelta delta = PageDelta.diff(page(4096), page(4096, 10, 14, 2000));
+        assertEquals(2, delta.getNumRanges());
+        assertEquals(6, delta.getChangedBytes());
+
+        assertTrue(PageDelta.diff(page(4096), page(4096)).isEmpty());
+    }
+
+    @Test public void serialization() throws Exception {
+        byte[] before = page(4096, 1);
+        byte[] after = page(4096, 100, 4095);
+        PageDelta delta = PageDelta.diff(before, after);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.writeTo(new DataOutputStream(bytes));
+        PageDelta read = PageDelta.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(4096, read.getPageSize());
+        assertEquals(delta.getNumRanges(), read.getNumRanges());
+
+        byte[] image = before.clone();
+        read.redo(image);
+        assertArrayEquals(after, image);
+        read.undo(image);
+        assertArrayEquals(before, image);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
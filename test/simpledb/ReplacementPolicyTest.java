@@ -0,0 +1,191 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static HeapPageId page(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * CLOCK gives every page a second chance, so the first page proposed is
+     * the one not referenced since the hand passed it.
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy policy = new ClockPolicy(3);
+        policy.recordMiss(page(0));
+        policy.recordMiss(page(1));
+        policy.recordMiss(page(2));
+
+        // first sweep clears every reference bit and proposes page 0
+        Iterator<PageId> victims = policy.victims();
+        assertEquals(page(0), victims.next());
+
+        // page 0 is referenced again, so page 1 goes next
+        policy.recordHit(page(0));
+        assertEquals(page(1), policy.victims().next());
+        policy.recordEviction(page(1));
+
+        assertEquals(1, policy.getHitCount());
+        assertEquals(3, policy.getMissCount());
+        assertEquals(1, policy.getEvictionCount());
+    }
+
+    /**
+     * LRU-2 prefers pages referenced only once over pages referenced twice,
+     * even if the single reference is more recent.
+     */
+    @Test public void lruKPrefersSingleReferences() {
+        LruKPolicy policy = new LruKPolicy(3, 2);
+        policy.recordMiss(page(0));
+        policy.recordHit(page(0));
+        policy.recordMiss(page(1));
+        policy.recordMiss(page(2));
+
+        Iterator<PageId> victims = policy.victims();
+        assertEquals(page(1), victims.next());
+        assertEquals(page(2), victims.next());
+        assertEquals(page(0), victims.next());
+        assertFalse(victims.hasNext());
+    }
+
+    /**
+     * LRU-K remembers the history of recently evicted pages.
+     */
+    @Test public void lruKRetainsHistory() {
+        LruKPolicy policy = new LruKPolicy(3, 2);
+        policy.recordMiss(page(0));
+        policy.recordMiss(page(1));
+        policy.recordEviction(page(0));
+        policy.recordMiss(page(0));
+        policy.recordMiss(page(2));
+
+        // page 0 now has two references, so it is the last to go
+        Iterator<PageId> victims = policy.victims();
+        assertEquals(page(1), victims.next());
+        assertEquals(page(2), victims.next());
+        assertEquals(page(0), victims.next());
+    }
+
+    /**
+     * The LRU-K walk follows the current order, so evicting the proposed
+     * page or referencing one ahead of it does not disturb it.
+     */
+    @Test public void lruKWalkFollowsReferences() {
+        LruKPolicy policy = new LruKPolicy(3, 2);
+        policy.recordMiss(page(0));
+        policy.recordMiss(page(1));
+        policy.recordMiss(page(2));
+
+        Iterator<PageId> victims = policy.victims();
+        assertEquals(page(0), victims.next());
+        policy.recordEviction(page(0));
+        policy.recordHit(page(1));
+        // page 1 now has two references and moved behind page 2
+        assertEquals(page(2), victims.next());
+        assertEquals(page(1), victims.next());
+        assertFalse(victims.hasNext());
+    }
+
+    /**
+     * Queued hits are applied in order, including when more pile up than
+     * the access buffer holds.
+     */
+    @Test public void queuedHitsKeepTheirOrder() {
+        LruKPolicy policy = new LruKPolicy(2, 2);
+        policy.recordMiss(page(0));
+        policy.recordMiss(page(1));
+        for (int i = 0; i < AccessBuffer.DEFAULT_CAPACITY * 2; i++)
+            policy.recordHit(page(i % 2));
+        policy.recordHit(page(0));
+
+        // page 1 was hit longest ago
+        Iterator<PageId> victims = policy.victims();
+        assertEquals(page(1), victims.next());
+        assertEquals(page(0), victims.next());
+        assertEquals(AccessBuffer.DEFAULT_CAPACITY * 2 + 1, policy.getHitCount());
+    }
+
+    /**
+     * 2Q only promotes a page to Am once it is re-read after leaving A1in.
+     */
+    @Test public void twoQueuePromotesOnReread() {
+        TwoQueuePolicy policy = new TwoQueuePolicy(1, 4);
+        policy.recordMiss(page(0));
+        policy.recordEviction(page(0));
+        policy.recordMiss(page(0)); // found in A1out, goes to Am
+        policy.recordMiss(page(1));
+        policy.recordMiss(page(2));
+
+        // A1in is over its target size, so scan pages go first
+        Iterator<PageId> victims = policy.victims();
+        assertEquals(page(1), victims.next());
+        assertEquals(page(2), victims.next());
+        assertEquals(page(0), victims.next());
+    }
+
+    /**
+     * Discarded pages leave no history behind, unlike evicted ones.
+     */
+    @Test public void discardKeepsNoHistory() {
+        TwoQueuePolicy twoQueue = new TwoQueuePolicy(1, 4);
+        twoQueue.recordMiss(page(0));
+        twoQueue.remove(page(0));
+        twoQueue.recordMiss(page(0)); // not in A1out, so back to A1in
+        twoQueue.recordMiss(page(1));
+        Iterator<PageId> victims = twoQueue.victims();
+        assertEquals(page(0), victims.next());
+        assertEquals(page(1), victims.next());
+
+        LruKPolicy lruK = new LruKPolicy(3, 2);
+        lruK.recordMiss(page(0));
+        lruK.recordMiss(page(1));
+        lruK.remove(page(0));
+        lruK.recordMiss(page(0));
+        lruK.recordMiss(page(2));
+        // page 0 starts over with a single reference
+        victims = lruK.victims();
+        assertEquals(page(1), victims.next());
+        assertEquals(page(0), victims.next());
+        assertEquals(page(2), victims.next());
+        assertEquals(0, lruK.getEvictionCount());
+    }
+
+    /**
+     * The BufferPool reports its lookups to the configured policy.
+     */
+    @Test public void bufferPoolCounters() throws Exception {
+        Database.reset(BufferPool.TWO_Q_POLICY);
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            bp.unpinPage(tid, new HeapPageId(hf.getId(), i));
+        }
+        bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+
+        ReplacementPolicy policy = bp.getReplacementPolicy();
+        assertEquals(TwoQueuePolicy.class, policy.getClass());
+        assertEquals(4, policy.getMissCount());
+        assertEquals(1, policy.getHitCount());
+        assertEquals(2, policy.getEvictionCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
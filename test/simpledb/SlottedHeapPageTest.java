@@ -0,0 +1,178 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE }, new String[] { "id", "name" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private static String name(int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < i % 7; j++)
+            sb.append((char)('a' + j));
+        return sb.toString();
+    }
+
+    private SlottedHeapPage emptyPage() throws IOException {
+        return new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+    }
+
+    private static ArrayList<Tuple> contents(TuplePage page) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); )
+            tuples.add(it.next());
+        return tuples;
+    }
+
+    /**
+     * Short strings take only the space they need, so many more tuples fit
+     * than in a fixed-size page, and they read back from the page bytes.
+     */
+    @Test public void packsShortTuples() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        assertEquals(0, contents(page).size());
+        int n = 0;
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(tuple(n, name(n)));
+            n++;
+        }
+        assertTrue(n > 2 * HeapPage.getNumTuples(TD));
+
+        SlottedHeapPage read = new SlottedHeapPage(pid, page.getPageData());
+        ArrayList<Tuple> tuples = contents(read);
+        assertEquals(n, tuples.size());
+        for (int i = 0; i < n; i++) {
+            Tuple t = tuples.get(i);
+            assertEquals(i, t.getRecordId().tupleno());
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(name(i), ((StringField) t.getField(1)).getValue());
+            assertEquals(name(i), ((StringField) read.getField(i, 1)).getValue());
+        }
+    }
+
+    /**
+     * Deleted tuples leave their slot free and their space is reclaimed for
+     * larger tuples by compacting the page; the other tuples keep their
+     * slots.
+     */
+    @Test public void reusesDeletedSpace() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = tuple(inserted.size(), "x");
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        for (int i = 0; i < inserted.size(); i += 2)
+            page.deleteTuple(inserted.get(i));
+        assertFalse(page.isSlotUsed(0));
+        assertNull(page.getField(0, 0));
+
+        String big = new String(new char[Type.STRING_LEN]).replace('\0', 'y');
+        int added = 0;
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(tuple(-1, big));
+            added++;
+        }
+        assertTrue(added > 0);
+
+        for (int i = 1; i < inserted.size(); i += 2) {
+            assertTrue(page.isSlotUsed(i));
+            assertEquals(new IntField(i), page.getField(i, 0));
+            assertEquals("x", ((StringField) page.getField(i, 1)).getValue());
+        }
+        assertEquals(inserted.size() / 2 + added, contents(page).size());
+    }
+
+    /**
+     * Changes leave the bytes the page was built from alone; they are its
+     * before image.
+     */
+    @Test public void beforeImage() throws Exception {
+        SlottedHeapPage page = emptyPage();
+        page.insertTuple(tuple(1, "one"));
+        page.setBeforeImage();
+        byte[] before = page.getPageData();
+
+        page.insertTuple(tuple(2, "two"));
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+        assertEquals(1, contents(page.getBeforeImage()).size());
+        assertEquals(2, contents(page).size());
+    }
+
+    /**
+     * HeapFileEncoder writes tables with varchar fields as slotted pages,
+     * which a HeapFile reads back.
+     */
+    @Test public void encodeAndScan() throws Exception {
+        File text = File.createTempFile("slotted", ".txt");
+        text.deleteOnExit();
+        File dat = File.createTempFile("slotted", ".dat");
+        dat.deleteOnExit();
+        int rows = 2000;
+        FileWriter w = new FileWriter(text);
+        for (int i = 0; i < rows; i++)
+            w.write(i + "," + name(i) + "\n");
+        w.close();
+
+        HeapFileEncoder.convert(text, dat, BufferPool.getPageSize(), 2,
+                new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE });
+        HeapFile hf = new HeapFile(dat, TD);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertTrue(Files.size(dat.toPath()) / BufferPool.getPageSize() < rows / HeapPage.getNumTuples(TD));
+
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals(name(id), ((StringField) t.getField(1)).getValue());
+            n++;
+        }
+        it.close();
+        assertEquals(rows, n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,204 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+  DbIterator gtJoin;
+  DbIterator leJoin;
+
+  /**
+   * Initialize each unit test; neither side comes in order
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 6,
+                    1, 2,
+                    7, 8,
+                    3, 4,
+                    3, 9 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 4, 5, 6,
+                    3, 4, 5,
+                    1, 2, 3,
+                    5, 6, 7,
+                    2, 3, 4,
+                    3, 0, 0 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    3, 4, 3, 0, 0,
+                    3, 9, 3, 4, 5,
+                    3, 9, 3, 0, 0,
+                    5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 3, 4, 1, 2, 3,
+                    3, 4, 2, 3, 4,
+                    3, 9, 1, 2, 3,
+                    3, 9, 2, 3, 4,
+                    5, 6, 1, 2, 3,
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 3, 0, 0,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3,
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 3, 0, 0,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+    this.leJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    1, 2, 2, 3, 4,
+                    1, 2, 3, 4, 5,
+                    1, 2, 3, 0, 0,
+                    1, 2, 4, 5, 6,
+                    1, 2, 5, 6, 7,
+                    3, 4, 3, 4, 5,
+                    3, 4, 3, 0, 0,
+                    3, 4, 4, 5, 6,
+                    3, 4, 5, 6, 7,
+                    3, 9, 3, 4, 5,
+                    3, 9, 3, 0, 0,
+                    3, 9, 4, 5, 6,
+                    3, 9, 5, 6, 7,
+                    5, 6, 5, 6, 7 });
+  }
+
+  /**
+   * Check that op returns the tuples of expected and as many, with the
+   * left join fields in ascending order.
+   */
+  private static void matchInOrder(DbIterator expected, SortMergeJoin op)
+      throws Exception {
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    int count = 0;
+    expected.rewind();
+    while (expected.hasNext()) {
+      expected.next();
+      count++;
+    }
+    op.rewind();
+    int last = Integer.MIN_VALUE;
+    while (op.hasNext()) {
+      int key = ((IntField) op.next().getField(op.getJoinPredicate().getField1())).getValue();
+      assertTrue(key >= last);
+      last = key;
+      count--;
+    }
+    assertEquals(0, count);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate, with
+   * duplicate keys on both sides
+   */
+  @Test public void eqJoin() throws Exception {
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+    op.open();
+    matchInOrder(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a > predicate
+   */
+  @Test public void gtJoin() throws Exception {
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0), scan1, scan2);
+    op.open();
+    matchInOrder(gtJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a <= predicate
+   */
+  @Test public void leJoin() throws Exception {
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.LESS_THAN_OR_EQ, 0), scan1, scan2);
+    op.open();
+    matchInOrder(leJoin, op);
+  }
+
+  /**
+   * Unit test for a SortMergeJoin with too little memory to sort its
+   * children, which spills sorted runs of them to disk
+   */
+  @Test public void spillJoin() throws Exception {
+    // a page holds two tuples of scan1
+    BufferPool.setPageSize(2 * scan1.getTupleDesc().getSize());
+    try {
+      SortMergeJoin op = new SortMergeJoin(
+          new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2, 1);
+      op.open();
+      assertTrue(op.getSpilledRuns() > 0);
+      matchInOrder(eqJoin, op);
+      op.close();
+
+      op = new SortMergeJoin(
+          new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0), scan1, scan2, 1);
+      op.open();
+      matchInOrder(gtJoin, op);
+      op.close();
+
+      op = new SortMergeJoin(
+          new JoinPredicate(0, Predicate.Op.LESS_THAN_OR_EQ, 0), scan1, scan2, 1);
+      op.open();
+      matchInOrder(leJoin, op);
+      op.close();
+    } finally {
+      BufferPool.resetPageSize();
+    }
+  }
+
+  /**
+   * A sort-merge join returns tuples in order of its left join field, and
+   * of its right one when it is an equality join
+   */
+  @Test public void isSorted() {
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 1), scan1, scan2);
+    assertTrue(SortMergeJoin.isSorted(op, 0));
+    assertTrue(SortMergeJoin.isSorted(op, width1 + 1));
+    assertFalse(SortMergeJoin.isSorted(op, 1));
+    assertFalse(SortMergeJoin.isSorted(scan1, 0));
+    assertTrue(SortMergeJoin.isSorted(new OrderBy(1, true, scan1), 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void notEquals() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
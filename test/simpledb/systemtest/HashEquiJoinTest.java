@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 import simpledb.*;
@@ -27,6 +29,17 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
                 COLUMNS, table2Rows, columnSpecification, t2Tuples);
         assert t2Tuples.size() == table2Rows;
 
+        checkJoin(table1, t1Tuples, table2, t2Tuples, JoinOptimizer.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Join table1 and table2 on their first columns, with the hash table
+     * limited to memoryPages pages, and check the result against t1Tuples
+     * and t2Tuples.
+     */
+    private HashEquiJoin checkJoin(HeapFile table1, ArrayList<ArrayList<Integer>> t1Tuples,
+            HeapFile table2, ArrayList<ArrayList<Integer>> t2Tuples, int memoryPages)
+            throws IOException, DbException, TransactionAbortedException {
         // Generate the expected results
         ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
         for (ArrayList<Integer> t1 : t1Tuples) {
@@ -45,13 +58,14 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
         SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
         SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
         JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
-        HashEquiJoin joinOp = new HashEquiJoin(p, ss1, ss2);
+        HashEquiJoin joinOp = new HashEquiJoin(p, ss1, ss2, memoryPages);
 
         // test the join results
         SystemTestUtil.matchTuples(joinOp, expectedResults);
 
         joinOp.close();
         Database.getBufferPool().transactionComplete(tid);
+        return joinOp;
     }
 
     @Test public void testSingleMatch()
@@ -69,6 +83,40 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * Tables many times larger than the memory of the join are joined a
+     * pair of partitions at a time.
+     */
+    @Test public void testSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t2Tuples);
+        HashEquiJoin joinOp = checkJoin(table1, t1Tuples, table2, t2Tuples, 1);
+        assertTrue(joinOp.getSpilledPartitions() >= HashEquiJoin.FANOUT / 2);
+    }
+
+    /**
+     * A partition of tuples that all share a value cannot be split by
+     * hashing; it is joined in pieces that fit in memory.
+     */
+    @Test public void testSkew()
+            throws IOException, DbException, TransactionAbortedException {
+        HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        columnSpecification.put(0, 1);
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, columnSpecification, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 5, columnSpecification, t2Tuples);
+        HashEquiJoin joinOp = checkJoin(table1, t1Tuples, table2, t2Tuples, 1);
+        assertTrue(joinOp.getSpilledPartitions() >= HashEquiJoin.MAX_DEPTH);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(HashEquiJoinTest.class);
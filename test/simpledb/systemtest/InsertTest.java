@@ -68,6 +68,13 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    /** Enough rows for a bulk append of new pages, plus a remainder. */
+    @Test public void testManyToOne()
+            throws IOException, DbException, TransactionAbortedException {
+        int batch = HeapPage.getNumTuples(Utility.getTupleDesc(1)) * HeapFile.APPEND_BATCH_PAGES;
+        validateInsert(1, batch + 100, 1);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
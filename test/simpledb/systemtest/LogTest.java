@@ -0,0 +1,448 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Tests rollback and restart recovery. A crash is simulated by resetting
+ * the Database, which throws away the buffer pool and reopens the log.
+ */
+public class LogTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // two full pages
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(COLUMNS, 504 * 2, null, tuples);
+    }
+
+    /**
+     * Delete the first tuple on page pgNo on behalf of t, and remove it
+     * from expected.
+     */
+    private void deleteFromPage(Transaction t, int pgNo, ArrayList<ArrayList<Integer>> expected)
+            throws Exception {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), pgNo), Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+        expected.remove(SystemTestUtil.tupleToList(victim));
+    }
+
+    /** Throw away everything in memory, reopen the table and recover. */
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(COLUMNS, hf.getFile());
+        Database.getLogFile().recover();
+    }
+
+    @Test public void abortRollsBackFlushedPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPage(t, 0, new ArrayList<ArrayList<Integer>>(tuples));
+        Database.getBufferPool().flushPages(t.getId());
+        t.abort();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    @Test public void recoverRedoesCommitted() throws Exception {
+        File f = hf.getFile();
+        byte[] original = Files.readAllBytes(f.toPath());
+
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        deleteFromPage(t, 0, expected);
+        t.commit();
+
+        // the page write is lost, but the log has it
+        Files.write(f.toPath(), original);
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    @Test public void recoverUndoesUncommitted() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPage(t, 0, new ArrayList<ArrayList<Integer>>(tuples));
+        Database.getBufferPool().flushPages(t.getId());
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    @Test public void recoverAfterCheckpoint() throws Exception {
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFromPage(loser, 0, new ArrayList<ArrayList<Integer>>(tuples));
+        // the checkpoint writes the loser's page to disk
+        Database.getLogFile().logCheckpoint();
+
+        Transaction winner = new Transaction();
+        winner.start();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        deleteFromPage(winner, 1, expected);
+        winner.commit();
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, expected);
+
+        // recovery is idempotent
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    /**
+     * A fuzzy checkpoint writes no pages, and recovery from it still redoes
+     * the winner and undoes the loser.
+     */
+    @Test public void recoverAfterFuzzyCheckpoint() throws Exception {
+        File f = hf.getFile();
+        Database.getLogFile().setFuzzyCheckpoints(true);
+
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFromPage(loser, 0, new ArrayList<ArrayList<Integer>>(tuples));
+        byte[] onDisk = Files.readAllBytes(f.toPath());
+        Database.getLogFile().logCheckpoint();
+        assertArrayEquals(onDisk, Files.readAllBytes(f.toPath()));
+
+        Transaction winner = new Transaction();
+        winner.start();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        deleteFromPage(winner, 1, expected);
+        winner.commit();
+        // the loser's page reaches the disk after all
+        Database.getBufferPool().flushPages(loser.getId());
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    /**
+     * Append rows tuples to the end of the table on behalf of t with
+     * BufferPool.appendTuples, and add them to expected.
+     */
+    private void append(Transaction t, int rows, ArrayList<ArrayList<Integer>> expected)
+            throws Exception {
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        for (int i = 0; i < rows; i++) {
+            int[] values = new int[COLUMNS];
+            for (int j = 0; j < COLUMNS; j++)
+                values[j] = i * COLUMNS + j;
+            Tuple tup = Utility.getHeapTuple(values);
+            batch.add(tup);
+            expected.add(SystemTestUtil.tupleToList(tup));
+        }
+        assertEquals(rows, Database.getBufferPool().appendTuples(t.getId(), hf.getId(), batch.iterator()));
+    }
+
+    /**
+     * Pages added by a bulk append are written before commit, and an abort
+     * empties them again.
+     */
+    @Test public void abortRollsBackAppend() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<ArrayList<Integer>> appended = new ArrayList<ArrayList<Integer>>(tuples);
+        append(t, 504 * 3 + 10, appended);
+        assertEquals(6, hf.numPages());
+        SystemTestUtil.matchTuples(hf, t.getId(), appended);
+        t.abort();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * The pages of an aborted bulk append are recorded as having room, so
+     * later inserts fill them before the file grows.
+     */
+    @Test public void abortedAppendLeavesRoom() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        append(t, 504 * 2, new ArrayList<ArrayList<Integer>>());
+        assertEquals(4, hf.numPages());
+        assertEquals(-1, hf.getFreeSpaceMap().findPage());
+        t.abort();
+        assertEquals(2, hf.getFreeSpaceMap().findPage());
+
+        t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, COLUMNS));
+        t.commit();
+        assertEquals(4, hf.numPages());
+    }
+
+    /**
+     * Recovery redoes a committed bulk append whose pages were lost and
+     * undoes an uncommitted one.
+     */
+    @Test public void recoverAppend() throws Exception {
+        File f = hf.getFile();
+        byte[] original = Files.readAllBytes(f.toPath());
+
+        Transaction winner = new Transaction();
+        winner.start();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        append(winner, 504 * 2, expected);
+        winner.commit();
+
+        Transaction loser = new Transaction();
+        loser.start();
+        append(loser, 504, new ArrayList<ArrayList<Integer>>());
+
+        // the winner's pages are lost, but the log has them
+        Files.write(f.toPath(), original);
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    /**
+     * A crash while a record is being written leaves it cut short at the
+     * end of the log.  Reading the log stops before it, and recovery writes
+     * its ABORT records in its place.
+     */
+    @Test public void recoverTruncatedRecord() throws Exception {
+        Transaction winner = new Transaction();
+        winner.start();
+        deleteFromPage(winner, 0, tuples);
+        winner.commit();
+
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFromPage(loser, 1, new ArrayList<ArrayList<Integer>>(tuples));
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(loser.getId(),
+                new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        LogFile log = Database.getLogFile();
+        long start = log.getCurrentOffset();
+        log.logWrite(loser.getId(), page.getBeforeImage(), page);
+        long end = log.getCurrentOffset();
+        log.force();
+
+        // only the first half of the UPDATE record made it
+        long segmentSize = Long.getLong(LogSegments.SEGMENT_SIZE_PROPERTY,
+                LogSegments.DEFAULT_SEGMENT_SIZE);
+        long cut = (start + end) / 2;
+        long n = cut / segmentSize;
+        RandomAccessFile segment = new RandomAccessFile(
+                new File("log." + String.format("%012d", n)), "rw");
+        segment.setLength(cut - n * segmentSize);
+        segment.close();
+
+        Database.reset();
+        hf = Utility.openHeapFile(COLUMNS, hf.getFile());
+        // the winner's update is whole, the loser's is not there at all
+        byte[] image = new byte[BufferPool.getPageSize()];
+        assertTrue(Database.getLogFile().replayPage(new HeapPageId(hf.getId(), 0), image));
+        assertFalse(Database.getLogFile().replayPage(new HeapPageId(hf.getId(), 1), image));
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        // the log is whole again
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A page whose write was torn fails its checksum when it is read, and
+     * is put back together from the log.
+     */
+    @Test public void repairTornPage() throws Exception {
+        File f = hf.getFile();
+        new File(f.getPath() + ".crc").deleteOnExit();
+        hf.setChecksums(true);
+        byte[] original = Files.readAllBytes(f.toPath());
+
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        deleteFromPage(t, 0, expected);
+        // and the last tuple, so that both halves of the page change
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        Tuple last = null;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); )
+            last = it.next();
+        Database.getBufferPool().deleteTuple(t.getId(), last);
+        expected.remove(SystemTestUtil.tupleToList(last));
+        t.commit();
+
+        // only the first half of the page reached the disk, so it is
+        // neither the old page nor the new one
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.write(original, 0, BufferPool.getPageSize() / 2);
+        raf.close();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, expected);
+        assertEquals(1, hf.getCorruptPageCount());
+
+        // damage the log knows nothing about is reported
+        raf = new RandomAccessFile(f, "rw");
+        raf.seek(BufferPool.getPageSize() - 1);
+        raf.write(~original[BufferPool.getPageSize() - 1]);
+        raf.close();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        try {
+            SystemTestUtil.matchTuples(hf, expected);
+            fail("expected the corrupt page to be reported");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(2, hf.getCorruptPageCount());
+    }
+
+    /**
+     * A page write that never reached the disk leaves the old page, which
+     * still checks out.
+     */
+    @Test public void lostPageWrite() throws Exception {
+        File f = hf.getFile();
+        new File(f.getPath() + ".crc").deleteOnExit();
+        hf.setChecksums(true);
+        byte[] original = Files.readAllBytes(f.toPath());
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPage(t, 0, new ArrayList<ArrayList<Integer>>(tuples));
+        t.commit();
+
+        Files.write(f.toPath(), original);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertEquals(0, hf.getCorruptPageCount());
+    }
+
+    /**
+     * Writes made while checksums are off drop the sums, so turning them
+     * back on trusts the pages again instead of failing them.
+     */
+    @Test public void writeWithoutChecksums() throws Exception {
+        File crc = new File(hf.getFile().getPath() + ".crc");
+        crc.deleteOnExit();
+        hf.setChecksums(true);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPage(t, 0, tuples);
+        t.commit();
+        assertTrue(crc.exists());
+
+        hf.setChecksums(false);
+        t = new Transaction();
+        t.start();
+        deleteFromPage(t, 0, tuples);
+        t.commit();
+        assertFalse(crc.exists());
+
+        hf.setChecksums(true);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertEquals(0, hf.getCorruptPageCount());
+        assertTrue(crc.exists());
+    }
+
+    /**
+     * Concurrent commits share one force of the log once group commit is
+     * enabled, and every COMMIT record still reaches the log.
+     */
+    @Test public void groupCommit() throws Exception {
+        final int committers = 8;
+        LogFile log = Database.getLogFile();
+        // the batch fills up long before the window closes
+        log.setGroupCommit(committers, 10 * 1000 * 1000);
+
+        final Transaction[] ts = new Transaction[committers];
+        Thread[] threads = new Thread[committers];
+        for (int i = 0; i < committers; i++) {
+            ts[i] = new Transaction();
+            ts[i].start();
+            final int slot = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        ts[slot].commit();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(committers, log.getCommitsPerForce(), 0.0);
+        assertEquals(2 * committers, log.getTotalRecords());
+        log.setGroupCommit(1, 0);
+    }
+
+    /**
+     * Concurrent commits that update pages share the force of their UPDATE
+     * records too, so the whole group takes two forces: one before the
+     * pages are written and one for the COMMIT records.
+     */
+    @Test public void groupCommitUpdates() throws Exception {
+        final int committers = 8;
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(COLUMNS, 504 * committers, null, tuples);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(committers, 10 * 1000 * 1000);
+
+        final Transaction[] ts = new Transaction[committers];
+        for (int i = 0; i < committers; i++) {
+            ts[i] = new Transaction();
+            ts[i].start();
+            deleteFromPage(ts[i], i, tuples);
+        }
+        Thread[] threads = new Thread[committers];
+        for (int i = 0; i < committers; i++) {
+            final int slot = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        ts[slot].commit();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(committers / 2.0, log.getCommitsPerForce(), 0.0);
+        assertEquals(3 * committers, log.getTotalRecords());
+        log.setGroupCommit(1, 0);
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /**
+     * Join table1 and table2 on their first columns with op, with each sort
+     * limited to memoryPages pages, and check the result against t1Tuples
+     * and t2Tuples.
+     */
+    private SortMergeJoin checkJoin(DbFile table1, ArrayList<ArrayList<Integer>> t1Tuples,
+            DbFile table2, ArrayList<ArrayList<Integer>> t2Tuples, Predicate.Op op,
+            int memoryPages)
+            throws IOException, DbException, TransactionAbortedException {
+        // Generate the expected results
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        // Begin the join
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        SortMergeJoin joinOp = new SortMergeJoin(p, ss1, ss2, memoryPages);
+
+        // test the join results
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        // and their order
+        joinOp.open();
+        int last = Integer.MIN_VALUE;
+        while (joinOp.hasNext()) {
+            int key = ((IntField) joinOp.next().getField(0)).getValue();
+            assertTrue(key >= last);
+            last = key;
+        }
+
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return joinOp;
+    }
+
+    /**
+     * Tables far larger than the memory of the join are sorted in runs that
+     * are spilled to disk and merged.
+     */
+    @Test public void testSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t2Tuples);
+
+        SortMergeJoin joinOp = checkJoin(table1, t1Tuples, table2, t2Tuples,
+                Predicate.Op.EQUALS, 1);
+        assertTrue(joinOp.getSpilledRuns() > 0);
+    }
+
+    @Test public void testRange()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 100, 100, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 100, 100, null, t2Tuples);
+
+        checkJoin(table1, t1Tuples, table2, t2Tuples, Predicate.Op.LESS_THAN, 1);
+        checkJoin(table1, t1Tuples, table2, t2Tuples, Predicate.Op.GREATER_THAN_OR_EQ,
+                JoinOptimizer.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * A range join whose right side does not fit in memory merges it into
+     * one run on disk, and reads the matches of each left tuple from the
+     * middle of it.
+     */
+    @Test public void testRangeSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 1500, 1000, null, t2Tuples);
+
+        SortMergeJoin joinOp = checkJoin(table1, t1Tuples, table2, t2Tuples,
+                Predicate.Op.LESS_THAN_OR_EQ, 1);
+        assertTrue(joinOp.getSpilledRuns() > 1);
+        checkJoin(table1, t1Tuples, table2, t2Tuples, Predicate.Op.GREATER_THAN, 1);
+    }
+
+    /**
+     * A B+ tree file keyed on the join field is read in key order, and not
+     * sorted again.
+     */
+    @Test public void testBTreeInput()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table1 = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, 3000, 1000, null, t1Tuples, 0);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t2Tuples);
+
+        TransactionId tid = new TransactionId();
+        assertTrue(SortMergeJoin.isSorted(new SeqScan(tid, table1.getId(), ""), 0));
+        assertTrue(SortMergeJoin.isSorted(new Filter(
+                new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(0)),
+                new SeqScan(tid, table1.getId(), "")), 0));
+        assertTrue(!SortMergeJoin.isSorted(new SeqScan(tid, table2.getId(), ""), 0));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // only the heap file is sorted, in runs
+        SortMergeJoin joinOp = checkJoin(table1, t1Tuples, table2, t2Tuples,
+                Predicate.Op.EQUALS, 1);
+        int heapRuns = joinOp.getSpilledRuns();
+        assertTrue(heapRuns > 0);
+        joinOp = checkJoin(table2, t2Tuples, table1, t1Tuples, Predicate.Op.EQUALS, 1);
+        assertEquals(heapRuns, joinOp.getSpilledRuns());
+    }
+}